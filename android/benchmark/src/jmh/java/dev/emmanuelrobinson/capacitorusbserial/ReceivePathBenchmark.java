@@ -0,0 +1,153 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * One operation is one read handed over by the reader thread, sized for the
+ * baud rate. The sink does the same encoding work as the dataReceived and
+ * frameReceived events minus the bridge call. Events/sec and bytes/sec are
+ * reported as auxiliary counters; run with -prof gc for the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class ReceivePathBenchmark {
+
+    @Param({ "9600", "115200", "921600", "3000000" })
+    public int baudRate;
+
+    @Param({ "utf8", "hex", "base64", "utf8+hex" })
+    public String encoding;
+
+    @Param({ "raw", "batched", "framed" })
+    public String mode;
+
+    /**
+     * Flush latency of the batched mode, DataBatcher.DEFAULT_MAX_LATENCY_MS by
+     * default. Reads arrive far faster than this, so batches fill up to
+     * maxBytes on the benchmark thread and the timer only flushes the tail.
+     */
+    @Param({ "16" })
+    public long batchLatencyMs;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public long events;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            events = 0;
+            bytes = 0;
+        }
+    }
+
+    private ReceivePipeline pipeline;
+    private ScheduledExecutorService scheduler;
+    private byte[] stream;
+    private byte[] readBuffer;
+    private int packetSize;
+    private int position;
+    private EncodingSink sink;
+
+    private static class EncodingSink implements ReceivePipeline.Sink {
+        private final DataEncoder.Encoding encoding;
+        Blackhole blackhole;
+        Throughput throughput;
+
+        EncodingSink(DataEncoder.Encoding encoding) {
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void onData(byte[] data, int length) {
+            emit(data, length);
+        }
+
+        @Override
+        public void onFrame(byte[] frame, int length) {
+            emit(frame, length);
+        }
+
+        @Override
+        public void onBuffered() {
+        }
+
+        private void emit(byte[] data, int length) {
+            switch (encoding) {
+                case UTF8:
+                    blackhole.consume(DataEncoder.toUtf8(data, 0, length));
+                    break;
+                case HEX:
+                    blackhole.consume(DataEncoder.toHex(data, 0, length));
+                    break;
+                case BASE64:
+                    blackhole.consume(DataEncoder.toBase64(data, 0, length));
+                    break;
+                case UTF8_HEX:
+                    blackhole.consume(DataEncoder.toUtf8(data, 0, length));
+                    blackhole.consume(DataEncoder.toHex(data, 0, length));
+                    break;
+            }
+            throughput.events++;
+            throughput.bytes += length;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 256 * 1024; i++) {
+            text.append("$GPGGA,").append(i).append(",4807.038,N,01131.000,E,1,08,0.9,545.4,M*47\r\n");
+        }
+        stream = text.toString().getBytes(StandardCharsets.US_ASCII);
+        packetSize = LoopbackPort.packetSizeForBaud(baudRate, 16 * 1024);
+        readBuffer = new byte[packetSize];
+
+        sink = new EncodingSink(DataEncoder.Encoding.fromName(encoding));
+        pipeline = new ReceivePipeline(sink, new ConnectionStats(), new ReceiveBuffer(ReceiveBuffer.DEFAULT_CAPACITY, ReceiveBuffer.OverflowPolicy.DROP_OLDEST));
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        if ("batched".equals(mode)) {
+            pipeline.setBatching(DataBatcher.DEFAULT_MAX_BYTES, batchLatencyMs, null, scheduler);
+        } else if ("framed".equals(mode)) {
+            pipeline.setFramer(Framer.delimiter("\r\n".getBytes(StandardCharsets.US_ASCII), false, Framer.DEFAULT_MAX_FRAME_SIZE));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pipeline.close();
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public void onRead(Throughput throughput, Blackhole blackhole) {
+        sink.throughput = throughput;
+        sink.blackhole = blackhole;
+
+        if (position + packetSize > stream.length) {
+            position = 0;
+        }
+        // ReadLoop reads every packet into the same buffer and hands out a slice of it
+        System.arraycopy(stream, position, readBuffer, 0, packetSize);
+        position += packetSize;
+        pipeline.onData(readBuffer, 0, packetSize);
+    }
+}
@@ -0,0 +1,73 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of slicing a write into bulk transfers on the writer thread, against a
+ * transport that only counts bytes. Run with -prof gc for the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class TransmitPathBenchmark {
+
+    @Param({ "64", "1024", "16384", "262144" })
+    public int chunkSize;
+
+    @Param({ "0", "4096", "16384" })
+    public int writeBufferSize;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public long transfers;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            transfers = 0;
+            bytes = 0;
+        }
+    }
+
+    private Transmitter transmitter;
+    private byte[] chunk;
+    private Throughput current;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        chunk = new byte[chunkSize];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) i;
+        }
+
+        SerialTransport transport = (data, offset, length, timeout) -> {
+            current.transfers++;
+            current.bytes += length;
+        };
+        transmitter = new Transmitter("benchmark-writer", transport, WriteQueue.DEFAULT_CAPACITY, writeBufferSize, new ConnectionStats(), (congested, queued, capacity) -> {});
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        transmitter.close();
+    }
+
+    @Benchmark
+    public void write(Throughput throughput) throws Exception {
+        current = throughput;
+        transmitter.writeNow(chunk, 0, chunk.length, 1000);
+    }
+}
@@ -0,0 +1,119 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+/**
+ * Fixed capacity circular byte buffer. Storage is allocated once; indices
+ * passed to the accessors are relative to the oldest buffered byte.
+ *
+ * Not thread-safe, callers synchronize where needed.
+ */
+public class ByteRingBuffer {
+
+    private final byte[] data;
+    private int head = 0;
+    private int size = 0;
+
+    public ByteRingBuffer(int capacity) {
+        this.data = new byte[Math.max(1, capacity)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return data.length;
+    }
+
+    public int free() {
+        return data.length - size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == data.length;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Appends as many bytes as fit and returns how many were taken.
+     */
+    public int write(byte[] src, int offset, int length) {
+        int n = Math.min(length, free());
+        int tail = (head + size) % data.length;
+        int first = Math.min(n, data.length - tail);
+        System.arraycopy(src, offset, data, tail, first);
+        if (n > first) {
+            System.arraycopy(src, offset + first, data, 0, n - first);
+        }
+        size += n;
+        return n;
+    }
+
+    public byte get(int index) {
+        return data[(head + index) % data.length];
+    }
+
+    /**
+     * Copies {@code length} bytes starting at relative {@code index} without consuming them.
+     */
+    public void copyTo(int index, byte[] dst, int dstOffset, int length) {
+        int start = (head + index) % data.length;
+        int first = Math.min(length, data.length - start);
+        System.arraycopy(data, start, dst, dstOffset, first);
+        if (length > first) {
+            System.arraycopy(data, 0, dst, dstOffset + first, length - first);
+        }
+    }
+
+    /**
+     * Copies up to {@code length} bytes into {@code dst} and consumes them.
+     */
+    public int read(byte[] dst, int dstOffset, int length) {
+        int n = Math.min(length, size);
+        copyTo(0, dst, dstOffset, n);
+        skip(n);
+        return n;
+    }
+
+    public void skip(int count) {
+        int n = Math.min(count, size);
+        head = (head + n) % data.length;
+        size -= n;
+        if (size == 0) {
+            head = 0;
+        }
+    }
+
+    public int indexOf(byte value, int fromIndex) {
+        for (int i = Math.max(0, fromIndex); i < size; i++) {
+            if (data[(head + i) % data.length] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int indexOf(byte[] pattern, int fromIndex) {
+        if (pattern.length == 1) {
+            return indexOf(pattern[0], fromIndex);
+        }
+        int last = size - pattern.length;
+        outer:
+        for (int i = Math.max(0, fromIndex); i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,70 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+/**
+ * Lifecycle of a {@link SerialConnection}:
+ *
+ * <pre>
+ * CONNECTING --> OPEN <--> SUSPENDED
+ *     |           |            |
+ *     |           +--> DRAINING <--+
+ *     |                   |
+ *     +-------------> CLOSING --> CLOSED
+ * </pre>
+ *
+ * OPEN and SUSPENDED can also go straight to CLOSING. The data path only
+ * reads the current state, so writes, reads and detach handling never wait
+ * on each other; only transitions that open or release the port are
+ * serialized.
+ */
+public enum ConnectionState {
+    CONNECTING("connecting"),
+    OPEN("open"),
+    SUSPENDED("suspended"),
+    DRAINING("draining"),
+    CLOSING("closing"),
+    CLOSED("closed");
+
+    private final String name;
+
+    ConnectionState(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Whether new writes and port operations are queued. A suspended session
+     * keeps queuing them for the device to return.
+     */
+    public boolean acceptsWrites() {
+        return this == OPEN || this == SUSPENDED;
+    }
+
+    /**
+     * Whether received bytes still go to the receive pipeline: everything up
+     * to closing, so the first bytes after (re)opening and the replies to the
+     * last writes while draining are kept.
+     */
+    public boolean isReceiving() {
+        return this != CLOSING && this != CLOSED;
+    }
+
+    public boolean canTransitionTo(ConnectionState next) {
+        switch (this) {
+            case CONNECTING:
+                return next == OPEN || next == CLOSING;
+            case OPEN:
+                return next == SUSPENDED || next == DRAINING || next == CLOSING;
+            case SUSPENDED:
+                return next == OPEN || next == DRAINING || next == CLOSING;
+            case DRAINING:
+                return next == CLOSING;
+            case CLOSING:
+                return next == CLOSED;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for a single connection. Updated without locks from the reader,
+ * writer and dispatch threads; only {@link #sampleReadsPerSecond()} is
+ * synchronized since it keeps the previous sample, which makes it the
+ * periodic stats event's alone.
+ */
+public class ConnectionStats {
+
+    private final long openedAt = System.currentTimeMillis();
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong eventsEmitted = new AtomicLong();
+    private final AtomicLong droppedBytes = new AtomicLong();
+
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+
+    private long lastSampleNanos = System.nanoTime();
+    private long lastSampleReads = 0;
+
+    public void recordRead(int length) {
+        reads.incrementAndGet();
+        bytesIn.addAndGet(length);
+    }
+
+    public void recordWrite(int length, long latencyNanos) {
+        writes.incrementAndGet();
+        bytesOut.addAndGet(length);
+        writeLatency.record(latencyNanos);
+    }
+
+    public void recordEvent(long latencyNanos) {
+        eventsEmitted.incrementAndGet();
+        dispatchLatency.record(latencyNanos);
+    }
+
+    public void recordDropped(long length) {
+        droppedBytes.addAndGet(length);
+    }
+
+    public long getOpenedAt() {
+        return openedAt;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getReads() {
+        return reads.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getEventsEmitted() {
+        return eventsEmitted.get();
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    /**
+     * Reads per second since the connection opened, without touching the sample.
+     */
+    public double getReadsPerSecond() {
+        long elapsed = System.currentTimeMillis() - openedAt;
+        return elapsed > 0 ? reads.get() * 1000.0 / elapsed : 0;
+    }
+
+    /**
+     * Reads per second since the previous sample (or since the connection opened).
+     */
+    public synchronized double sampleReadsPerSecond() {
+        long now = System.nanoTime();
+        long currentReads = reads.get();
+        double seconds = (now - lastSampleNanos) / 1e9;
+        double rate = seconds > 0 ? (currentReads - lastSampleReads) / seconds : 0;
+        lastSampleNanos = now;
+        lastSampleReads = currentReads;
+        return rate;
+    }
+}
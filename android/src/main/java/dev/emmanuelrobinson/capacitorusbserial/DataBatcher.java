@@ -0,0 +1,139 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces the chunks handed over by the serial read loop so that a single
+ * bridge event can carry many USB reads.
+ *
+ * A batch is flushed when it reaches {@code maxBytes}, when the oldest pending
+ * byte has waited {@code maxLatencyMs}, or when the delimiter is seen (in which
+ * case everything up to and including the last delimiter is flushed and the
+ * remainder stays pending).
+ */
+public class DataBatcher {
+
+    public interface Sink {
+        /**
+         * The batch is only valid during the call; the array is reused.
+         *
+         * @param receivedNanos {@link System#nanoTime()} at which the oldest byte of the batch arrived
+         */
+        void onBatch(byte[] data, int length, long receivedNanos);
+    }
+
+    public static final int DEFAULT_MAX_BYTES = 4096;
+    public static final long DEFAULT_MAX_LATENCY_MS = 16;
+
+    private final int maxBytes;
+    private final long maxLatencyMs;
+    private final byte[] delimiter;
+    private final ScheduledExecutorService scheduler;
+    private final Sink sink;
+
+    private final byte[] buffer;
+    private int length = 0;
+    private long pendingSince = 0;
+    private ScheduledFuture<?> flushTask;
+    private boolean closed = false;
+
+    public DataBatcher(int maxBytes, long maxLatencyMs, byte[] delimiter, ScheduledExecutorService scheduler, Sink sink) {
+        this.maxBytes = Math.max(1, maxBytes);
+        this.maxLatencyMs = maxLatencyMs;
+        this.delimiter = (delimiter != null && delimiter.length > 0) ? delimiter : null;
+        this.scheduler = scheduler;
+        this.sink = sink;
+        this.buffer = new byte[this.maxBytes];
+    }
+
+    public synchronized void append(byte[] data, int offset, int count, long receivedNanos) {
+        if (closed) {
+            return;
+        }
+
+        while (count > 0) {
+            if (length == 0) {
+                pendingSince = receivedNanos;
+            }
+            int n = Math.min(count, maxBytes - length);
+            System.arraycopy(data, offset, buffer, length, n);
+            int searchFrom = Math.max(0, length - (delimiter != null ? delimiter.length - 1 : 0));
+            length += n;
+            offset += n;
+            count -= n;
+
+            if (delimiter != null) {
+                int end = lastDelimiterEnd(searchFrom);
+                if (end > 0) {
+                    emit(end);
+                }
+            }
+            if (length == maxBytes) {
+                emit(length);
+            }
+        }
+
+        if (length > 0 && flushTask == null && maxLatencyMs > 0) {
+            flushTask = scheduler.schedule(this::flush, maxLatencyMs, TimeUnit.MILLISECONDS);
+        } else if (length > 0 && maxLatencyMs <= 0) {
+            emit(length);
+        }
+    }
+
+    public synchronized void flush() {
+        if (length > 0) {
+            emit(length);
+        }
+    }
+
+    /**
+     * Flushes whatever is pending and stops accepting data.
+     */
+    public synchronized void close() {
+        flush();
+        closed = true;
+    }
+
+    private int lastDelimiterEnd(int from) {
+        int last = -1;
+        for (int i = from; i <= length - delimiter.length; i++) {
+            boolean match = true;
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) {
+                last = i + delimiter.length;
+                i = last - 1;
+            }
+        }
+        return last;
+    }
+
+    // Must be called with the lock held so batches reach the sink in order.
+    private void emit(int count) {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+
+        try {
+            // Handed out in place, the remainder moves down once the sink is done
+            sink.onBatch(buffer, count, pendingSince);
+        } finally {
+            length -= count;
+            if (length > 0) {
+                System.arraycopy(buffer, count, buffer, 0, length);
+                // The remainder belongs to the most recent chunk
+                pendingSince = System.nanoTime();
+            }
+            if (length > 0 && maxLatencyMs > 0 && !closed) {
+                flushTask = scheduler.schedule(this::flush, maxLatencyMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Table driven encoders for received bytes. Each encoder fills a char array
+ * reused by the calling thread, so producing a representation costs only the
+ * resulting String.
+ */
+public final class DataEncoder {
+
+    public enum Encoding {
+        UTF8("utf8"),
+        HEX("hex"),
+        BASE64("base64"),
+        UTF8_HEX("utf8+hex");
+
+        private final String name;
+
+        Encoding(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the encoding, or null if the name is unknown
+         */
+        public static Encoding fromName(String name) {
+            for (Encoding encoding : values()) {
+                if (encoding.name.equals(name)) {
+                    return encoding;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final int[] BASE64_VALUES = new int[128];
+
+    static {
+        java.util.Arrays.fill(BASE64_VALUES, -1);
+        for (int i = 0; i < BASE64_ALPHABET.length; i++) {
+            BASE64_VALUES[BASE64_ALPHABET[i]] = i;
+        }
+    }
+
+    // Larger arrays are used once and left to the collector
+    private static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+    private static final ThreadLocal<char[]> SCRATCH = ThreadLocal.withInitial(() -> new char[256]);
+
+    private DataEncoder() {}
+
+    private static char[] scratch(int size) {
+        char[] chars = SCRATCH.get();
+        if (chars.length < size) {
+            chars = new char[size];
+            if (size <= MAX_RETAINED_CHARS) {
+                SCRATCH.set(chars);
+            }
+        }
+        return chars;
+    }
+
+    public static String toUtf8(byte[] data, int offset, int length) {
+        return new String(data, offset, length, StandardCharsets.UTF_8);
+    }
+
+    public static String toHex(byte[] data, int offset, int length) {
+        char[] out = scratch(length * 2);
+        for (int i = 0, j = 0; i < length; i++) {
+            int b = data[offset + i] & 0xFF;
+            out[j++] = HEX_DIGITS[b >>> 4];
+            out[j++] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(out, 0, length * 2);
+    }
+
+    public static String toBase64(byte[] data, int offset, int length) {
+        int size = ((length + 2) / 3) * 4;
+        char[] out = scratch(size);
+        int end = offset + length;
+        int i = offset;
+        int j = 0;
+
+        while (end - i >= 3) {
+            int n = ((data[i] & 0xFF) << 16) | ((data[i + 1] & 0xFF) << 8) | (data[i + 2] & 0xFF);
+            out[j++] = BASE64_ALPHABET[(n >>> 18) & 0x3F];
+            out[j++] = BASE64_ALPHABET[(n >>> 12) & 0x3F];
+            out[j++] = BASE64_ALPHABET[(n >>> 6) & 0x3F];
+            out[j++] = BASE64_ALPHABET[n & 0x3F];
+            i += 3;
+        }
+
+        int remaining = end - i;
+        if (remaining > 0) {
+            int n = (data[i] & 0xFF) << 16;
+            if (remaining == 2) {
+                n |= (data[i + 1] & 0xFF) << 8;
+            }
+            out[j++] = BASE64_ALPHABET[(n >>> 18) & 0x3F];
+            out[j++] = BASE64_ALPHABET[(n >>> 12) & 0x3F];
+            out[j++] = remaining == 2 ? BASE64_ALPHABET[(n >>> 6) & 0x3F] : '=';
+            out[j] = '=';
+        }
+
+        return new String(out, 0, size);
+    }
+
+    /**
+     * Decodes standard (padded or unpadded) base64.
+     *
+     * @throws IllegalArgumentException if the input is not valid base64
+     */
+    public static byte[] fromBase64(String input) {
+        int length = input.length();
+        while (length > 0 && input.charAt(length - 1) == '=') {
+            length--;
+        }
+        if (length % 4 == 1) {
+            throw new IllegalArgumentException("Invalid base64 length");
+        }
+
+        byte[] out = new byte[length * 3 / 4];
+        int bits = 0;
+        int bitCount = 0;
+        int j = 0;
+        for (int i = 0; i < length; i++) {
+            char c = input.charAt(i);
+            int value = c < 128 ? BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Invalid base64 character at " + i);
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                out[j++] = (byte) (bits >>> bitCount);
+            }
+        }
+        return out;
+    }
+}
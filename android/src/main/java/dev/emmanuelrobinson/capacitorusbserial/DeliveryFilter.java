@@ -0,0 +1,179 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops delivery units (frames, batches or raw reads) before they become
+ * events. Stages apply in order:
+ *
+ * <ol>
+ * <li>match: keep units that start with, or contain, one of the patterns</li>
+ * <li>decimate: keep every n-th unit</li>
+ * <li>throttle: keep a unit only if the previous one was delivered at least
+ * the interval ago</li>
+ * <li>sample: hold only the latest unit and deliver it once per interval</li>
+ * </ol>
+ *
+ * Sampled units are copied and delivered from the scheduler thread, under the
+ * filter's lock, like {@link DataBatcher} flushes.
+ */
+public class DeliveryFilter {
+
+    public interface Target {
+        void deliver(byte[] data, int length, long receivedNanos);
+    }
+
+    private final byte[][] patterns;
+    private final boolean anchored;
+    private final int decimate;
+    private final long throttleNanos;
+    private final long sampleIntervalMs;
+    private final ScheduledExecutorService scheduler;
+    private final Target target;
+
+    private long seen = 0;
+    private long filtered = 0;
+    private long lastDeliveredNanos;
+    private boolean delivered = false;
+
+    private byte[] latest = new byte[0];
+    private int latestLength = -1;
+    private long latestReceivedNanos;
+    private ScheduledFuture<?> sampleTask;
+    private boolean closed = false;
+
+    /**
+     * @param patterns         byte patterns to match, or null to keep every unit
+     * @param anchored         patterns must match at the start of the unit
+     * @param decimate         keep every n-th unit, 1 or less to keep all
+     * @param throttleMs       minimum time between delivered units, 0 for none
+     * @param sampleIntervalMs deliver only the latest unit per interval, 0 for none
+     */
+    public DeliveryFilter(
+        byte[][] patterns,
+        boolean anchored,
+        int decimate,
+        long throttleMs,
+        long sampleIntervalMs,
+        ScheduledExecutorService scheduler,
+        Target target
+    ) {
+        this.patterns = patterns != null && patterns.length > 0 ? patterns : null;
+        this.anchored = anchored;
+        this.decimate = Math.max(1, decimate);
+        this.throttleNanos = Math.max(0, throttleMs) * 1_000_000L;
+        this.sampleIntervalMs = Math.max(0, sampleIntervalMs);
+        this.scheduler = scheduler;
+        this.target = target;
+    }
+
+    public synchronized void offer(byte[] data, int length, long receivedNanos) {
+        if (closed) {
+            target.deliver(data, length, receivedNanos);
+            return;
+        }
+
+        if (patterns != null && !matches(data, length)) {
+            filtered++;
+            return;
+        }
+        if (seen++ % decimate != 0) {
+            filtered++;
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (throttleNanos > 0 && delivered && now - lastDeliveredNanos < throttleNanos) {
+            filtered++;
+            return;
+        }
+
+        if (sampleIntervalMs > 0) {
+            hold(data, length, receivedNanos);
+            return;
+        }
+
+        delivered = true;
+        lastDeliveredNanos = now;
+        target.deliver(data, length, receivedNanos);
+    }
+
+    /**
+     * Units dropped so far, including sampled units replaced by a newer one.
+     */
+    public synchronized long getFiltered() {
+        return filtered;
+    }
+
+    /**
+     * Delivers a held sample and stops the sampling timer.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (sampleTask != null) {
+            sampleTask.cancel(false);
+            sampleTask = null;
+        }
+        deliverSample();
+    }
+
+    private void hold(byte[] data, int length, long receivedNanos) {
+        if (latestLength >= 0) {
+            filtered++;
+        }
+        if (latest.length < length) {
+            latest = new byte[length];
+        }
+        System.arraycopy(data, 0, latest, 0, length);
+        latestLength = length;
+        latestReceivedNanos = receivedNanos;
+
+        if (sampleTask == null) {
+            sampleTask = scheduler.scheduleAtFixedRate(this::sample, sampleIntervalMs, sampleIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void sample() {
+        deliverSample();
+    }
+
+    private void deliverSample() {
+        if (latestLength < 0) {
+            return;
+        }
+        int length = latestLength;
+        latestLength = -1;
+        delivered = true;
+        lastDeliveredNanos = System.nanoTime();
+        target.deliver(latest, length, latestReceivedNanos);
+    }
+
+    private boolean matches(byte[] data, int length) {
+        for (byte[] pattern : patterns) {
+            int last = anchored ? 0 : length - pattern.length;
+            for (int start = 0; start <= last; start++) {
+                if (regionEquals(data, start, length, pattern)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionEquals(byte[] data, int start, int length, byte[] pattern) {
+        if (start + pattern.length > length) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            if (data[start + i] != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
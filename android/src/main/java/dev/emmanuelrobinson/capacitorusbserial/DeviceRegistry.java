@@ -0,0 +1,139 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+
+import com.hoho.android.usbserial.driver.CdcAcmSerialDriver;
+import com.hoho.android.usbserial.driver.Ch34xSerialDriver;
+import com.hoho.android.usbserial.driver.Cp21xxSerialDriver;
+import com.hoho.android.usbserial.driver.FtdiSerialDriver;
+import com.hoho.android.usbserial.driver.ProbeTable;
+import com.hoho.android.usbserial.driver.ProlificSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialProber;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of attached USB devices and their serial drivers, keyed by device ID.
+ *
+ * The full probe runs once on initialization; afterwards only the device
+ * named by an attach broadcast is probed, and detached devices are dropped,
+ * so lookups never re-enumerate the bus.
+ */
+public class DeviceRegistry {
+    private static final String TAG = "DeviceRegistry";
+
+    private final UsbManager usbManager;
+    private final UsbSerialProber prober;
+    private final Map<Integer, UsbDevice> devices = new ConcurrentHashMap<>();
+    private final Map<Integer, UsbSerialDriver> drivers = new ConcurrentHashMap<>();
+
+    public DeviceRegistry(UsbManager usbManager, UsbSerialProber prober) {
+        this.usbManager = usbManager;
+        this.prober = prober;
+    }
+
+    /**
+     * Builds the default probe table extended with entries of the form
+     * {@code {vendorId, productId, driver}} where driver is one of cdcAcm,
+     * cp21xx, ftdi, prolific or ch34x.
+     */
+    public static ProbeTable createProbeTable(JSONArray customDrivers) {
+        ProbeTable table = UsbSerialProber.getDefaultProbeTable();
+        if (customDrivers == null) {
+            return table;
+        }
+
+        for (int i = 0; i < customDrivers.length(); i++) {
+            JSONObject entry = customDrivers.optJSONObject(i);
+            if (entry == null) {
+                continue;
+            }
+            Class<? extends UsbSerialDriver> driverClass = driverClass(entry.optString("driver", "cdcAcm"));
+            if (driverClass == null) {
+                Log.w(TAG, "Unknown driver in customDrivers: " + entry.optString("driver"));
+                continue;
+            }
+            table.addProduct(entry.optInt("vendorId"), entry.optInt("productId"), driverClass);
+        }
+        return table;
+    }
+
+    private static Class<? extends UsbSerialDriver> driverClass(String name) {
+        switch (name) {
+            case "cdcAcm": return CdcAcmSerialDriver.class;
+            case "cp21xx": return Cp21xxSerialDriver.class;
+            case "ftdi": return FtdiSerialDriver.class;
+            case "prolific": return ProlificSerialDriver.class;
+            case "ch34x": return Ch34xSerialDriver.class;
+            default: return null;
+        }
+    }
+
+    /**
+     * Re-probes every attached device.
+     */
+    public void refresh() {
+        devices.clear();
+        drivers.clear();
+        for (UsbDevice device : usbManager.getDeviceList().values()) {
+            onAttached(device);
+        }
+    }
+
+    public void onAttached(UsbDevice device) {
+        devices.put(device.getDeviceId(), device);
+        UsbSerialDriver driver = prober.probeDevice(device);
+        if (driver != null) {
+            drivers.put(device.getDeviceId(), driver);
+        }
+    }
+
+    public void onDetached(UsbDevice device) {
+        devices.remove(device.getDeviceId());
+        drivers.remove(device.getDeviceId());
+    }
+
+    public UsbDevice getDevice(int deviceId) {
+        UsbDevice device = devices.get(deviceId);
+        if (device == null) {
+            // The attach broadcast may have been missed (e.g. while the receiver was not registered)
+            device = findUncached(deviceId);
+        }
+        return device;
+    }
+
+    public UsbSerialDriver getDriver(int deviceId) {
+        if (!devices.containsKey(deviceId)) {
+            findUncached(deviceId);
+        }
+        return drivers.get(deviceId);
+    }
+
+    public Collection<UsbDevice> getDevices() {
+        return new ArrayList<>(devices.values());
+    }
+
+    public List<UsbSerialDriver> getDrivers() {
+        return new ArrayList<>(drivers.values());
+    }
+
+    private UsbDevice findUncached(int deviceId) {
+        for (UsbDevice device : usbManager.getDeviceList().values()) {
+            if (device.getDeviceId() == deviceId) {
+                onAttached(device);
+                return device;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,151 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sends a file to the port in chunks read through a FileChannel into one
+ * reused buffer, so a firmware image never crosses the bridge. Optionally
+ * pauses between chunks and waits for the device to acknowledge each one
+ * before sending the next.
+ *
+ * {@link #run} is meant for the writer thread; {@link #cancel()} may be
+ * called from any thread and takes effect after the current chunk.
+ */
+public class FileStreamer {
+
+    public interface Listener {
+        void onProgress(FileStreamer streamer);
+    }
+
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    public static final long DEFAULT_PROGRESS_INTERVAL_MS = 250;
+
+    // Room for whatever the device sends ahead of the acknowledgement
+    private static final int MAX_ACK_RESPONSE_SIZE = 256;
+
+    private final File file;
+    private final int chunkSize;
+    private final int interChunkDelayMs;
+    private final Transaction ack;
+    private final long progressIntervalNanos;
+    private final Listener listener;
+    private volatile boolean cancelled = false;
+
+    private long totalBytes = 0;
+    private long bytesSent = 0;
+    private int chunks = 0;
+
+    /**
+     * @param ackPattern each chunk must be answered with a response ending in
+     *                   these bytes within ackTimeout ms, or null to not wait
+     */
+    public FileStreamer(
+        File file,
+        int chunkSize,
+        int interChunkDelayMs,
+        byte[] ackPattern,
+        int ackTimeout,
+        long progressIntervalMs,
+        Listener listener
+    ) {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("chunkSize must be between 1 and " + MAX_CHUNK_SIZE);
+        }
+        this.file = file;
+        this.chunkSize = chunkSize;
+        this.interChunkDelayMs = Math.max(0, interChunkDelayMs);
+        this.ack = ackPattern != null && ackPattern.length > 0
+            ? new Transaction(null, ackPattern, 0, ackTimeout, MAX_ACK_RESPONSE_SIZE)
+            : null;
+        this.progressIntervalNanos = Math.max(0, progressIntervalMs) * 1_000_000L;
+        this.listener = listener;
+    }
+
+    /**
+     * Streams the file until it is sent or the stream is cancelled. Received
+     * bytes go to the acknowledgement, if any, while a chunk is outstanding.
+     */
+    public void run(SerialTransport transport, int writeTimeout, ReceivePipeline pipeline) throws IOException, InterruptedException {
+        try (FileInputStream input = new FileInputStream(file); FileChannel channel = input.getChannel()) {
+            totalBytes = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(chunkSize, Math.max(1, totalBytes)));
+            long lastProgress = System.nanoTime();
+
+            if (ack != null) {
+                pipeline.setTransaction(ack);
+            }
+            try {
+                while (!cancelled) {
+                    buffer.clear();
+                    int read;
+                    do {
+                        read = channel.read(buffer);
+                    } while (read >= 0 && buffer.hasRemaining());
+                    int length = buffer.position();
+                    if (length == 0) {
+                        break;
+                    }
+
+                    if (ack != null) {
+                        ack.reset();
+                        ack.start();
+                    }
+                    transport.write(buffer.array(), 0, length, writeTimeout);
+                    bytesSent += length;
+                    chunks++;
+
+                    if (ack != null) {
+                        Transaction.Status status = ack.await();
+                        if (status != Transaction.Status.OK) {
+                            throw new IOException("Chunk " + chunks + " was not acknowledged: " + status.getName());
+                        }
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - lastProgress >= progressIntervalNanos) {
+                        lastProgress = now;
+                        listener.onProgress(this);
+                    }
+
+                    if (interChunkDelayMs > 0 && bytesSent < totalBytes) {
+                        Thread.sleep(interChunkDelayMs);
+                    }
+                }
+            } finally {
+                if (ack != null) {
+                    pipeline.setTransaction(null);
+                }
+            }
+        }
+        listener.onProgress(this);
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+}
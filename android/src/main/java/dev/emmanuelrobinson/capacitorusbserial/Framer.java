@@ -0,0 +1,287 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+/**
+ * Reassembles frames from arbitrary read chunk boundaries.
+ *
+ * Incoming bytes are accumulated in a ring buffer sized for the largest
+ * frame; completed frames are copied into a reusable frame array and handed
+ * to the listener, which must copy anything it wants to keep. If the buffer
+ * fills up without producing a frame the pending bytes are discarded so the
+ * stream can resynchronize.
+ */
+public abstract class Framer {
+
+    public interface Listener {
+        void onFrame(byte[] frame, int length);
+    }
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 4096;
+
+    protected final ByteRingBuffer buffer;
+    protected final byte[] frame;
+    private long discardedBytes = 0;
+
+    protected Framer(int maxFrameSize) {
+        int size = Math.max(1, maxFrameSize);
+        this.buffer = new ByteRingBuffer(size + 1);
+        this.frame = new byte[size];
+    }
+
+    public void push(byte[] data, int offset, int length, Listener listener) {
+        while (length > 0) {
+            int n = buffer.write(data, offset, length);
+            offset += n;
+            length -= n;
+            extractFrames(listener);
+
+            if (buffer.isFull()) {
+                discardedBytes += buffer.size();
+                buffer.clear();
+                reset();
+            }
+        }
+    }
+
+    public long getDiscardedBytes() {
+        return discardedBytes;
+    }
+
+    /**
+     * Counts bytes dropped by a subclass, e.g. an oversized frame.
+     */
+    protected void discard(int count) {
+        discardedBytes += count;
+    }
+
+    /**
+     * Emits every complete frame currently in the buffer.
+     */
+    protected abstract void extractFrames(Listener listener);
+
+    /**
+     * Clears any scan state after the buffer has been discarded.
+     */
+    protected void reset() {}
+
+    public static Framer delimiter(byte[] delimiter, boolean includeDelimiter, int maxFrameSize) {
+        return new DelimiterFramer(delimiter, includeDelimiter, maxFrameSize);
+    }
+
+    public static Framer fixedLength(int length) {
+        return new FixedLengthFramer(length);
+    }
+
+    public static Framer lengthPrefix(
+        int lengthFieldOffset,
+        int lengthFieldSize,
+        boolean bigEndian,
+        int lengthAdjustment,
+        int maxFrameSize
+    ) {
+        return new LengthPrefixFramer(lengthFieldOffset, lengthFieldSize, bigEndian, lengthAdjustment, maxFrameSize);
+    }
+
+    public static Framer slip(int maxFrameSize) {
+        return new SlipFramer(maxFrameSize);
+    }
+
+    public static Framer cobs(int maxFrameSize) {
+        return new CobsFramer(maxFrameSize);
+    }
+
+    static class DelimiterFramer extends Framer {
+
+        private final byte[] delimiter;
+        private final boolean includeDelimiter;
+        private final int maxFrameSize;
+        private int scanFrom = 0;
+
+        DelimiterFramer(byte[] delimiter, boolean includeDelimiter, int maxFrameSize) {
+            super(maxFrameSize + delimiter.length);
+            this.delimiter = delimiter;
+            this.includeDelimiter = includeDelimiter;
+            this.maxFrameSize = Math.max(1, maxFrameSize);
+        }
+
+        @Override
+        protected void extractFrames(Listener listener) {
+            int index;
+            while ((index = buffer.indexOf(delimiter, scanFrom)) >= 0) {
+                scanFrom = 0;
+                if (index > maxFrameSize) {
+                    // The buffer can hold one byte more than a frame, drop the line
+                    buffer.skip(index + delimiter.length);
+                    discard(index + delimiter.length);
+                    continue;
+                }
+                int length = includeDelimiter ? index + delimiter.length : index;
+                buffer.copyTo(0, frame, 0, length);
+                buffer.skip(index + delimiter.length);
+                if (index > 0) {
+                    listener.onFrame(frame, length);
+                }
+            }
+            // Only the tail that could still hold a partial delimiter needs rescanning
+            scanFrom = Math.max(0, buffer.size() - delimiter.length + 1);
+        }
+
+        @Override
+        protected void reset() {
+            scanFrom = 0;
+        }
+    }
+
+    static class FixedLengthFramer extends Framer {
+
+        private final int length;
+
+        FixedLengthFramer(int length) {
+            super(Math.max(1, length));
+            this.length = Math.max(1, length);
+        }
+
+        @Override
+        protected void extractFrames(Listener listener) {
+            while (buffer.size() >= length) {
+                buffer.read(frame, 0, length);
+                listener.onFrame(frame, length);
+            }
+        }
+    }
+
+    static class LengthPrefixFramer extends Framer {
+
+        private final int lengthFieldOffset;
+        private final int lengthFieldSize;
+        private final boolean bigEndian;
+        private final int lengthAdjustment;
+        private final int maxFrameSize;
+
+        LengthPrefixFramer(int lengthFieldOffset, int lengthFieldSize, boolean bigEndian, int lengthAdjustment, int maxFrameSize) {
+            super(maxFrameSize);
+            if (lengthFieldSize != 1 && lengthFieldSize != 2 && lengthFieldSize != 4) {
+                throw new IllegalArgumentException("lengthFieldSize must be 1, 2 or 4");
+            }
+            this.lengthFieldOffset = lengthFieldOffset;
+            this.lengthFieldSize = lengthFieldSize;
+            this.bigEndian = bigEndian;
+            this.lengthAdjustment = lengthAdjustment;
+            this.maxFrameSize = maxFrameSize;
+        }
+
+        @Override
+        protected void extractFrames(Listener listener) {
+            int headerSize = lengthFieldOffset + lengthFieldSize;
+            while (buffer.size() >= headerSize) {
+                long payload = 0;
+                for (int i = 0; i < lengthFieldSize; i++) {
+                    int shift = bigEndian ? (lengthFieldSize - 1 - i) * 8 : i * 8;
+                    payload |= (long) (buffer.get(lengthFieldOffset + i) & 0xFF) << shift;
+                }
+
+                long total = headerSize + payload + lengthAdjustment;
+                if (total < headerSize || total > maxFrameSize) {
+                    // Corrupt header, drop a byte and try to resynchronize
+                    buffer.skip(1);
+                    continue;
+                }
+                if (buffer.size() < total) {
+                    return;
+                }
+
+                buffer.read(frame, 0, (int) total);
+                listener.onFrame(frame, (int) total);
+            }
+        }
+    }
+
+    static class SlipFramer extends Framer {
+
+        private static final byte END = (byte) 0xC0;
+        private static final byte ESC = (byte) 0xDB;
+        private static final byte ESC_END = (byte) 0xDC;
+        private static final byte ESC_ESC = (byte) 0xDD;
+
+        private int scanFrom = 0;
+
+        SlipFramer(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        @Override
+        protected void extractFrames(Listener listener) {
+            int end;
+            while ((end = buffer.indexOf(END, scanFrom)) >= 0) {
+                int length = 0;
+                for (int i = 0; i < end; i++) {
+                    byte b = buffer.get(i);
+                    if (b == ESC && i + 1 < end) {
+                        byte next = buffer.get(++i);
+                        b = next == ESC_END ? END : next == ESC_ESC ? ESC : next;
+                    }
+                    frame[length++] = b;
+                }
+                buffer.skip(end + 1);
+                scanFrom = 0;
+
+                // Back-to-back END bytes delimit empty frames, which carry nothing
+                if (length > 0) {
+                    listener.onFrame(frame, length);
+                }
+            }
+            scanFrom = buffer.size();
+        }
+
+        @Override
+        protected void reset() {
+            scanFrom = 0;
+        }
+    }
+
+    static class CobsFramer extends Framer {
+
+        private int scanFrom = 0;
+
+        CobsFramer(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        @Override
+        protected void extractFrames(Listener listener) {
+            int end;
+            while ((end = buffer.indexOf((byte) 0, scanFrom)) >= 0) {
+                int length = decode(end);
+                buffer.skip(end + 1);
+                scanFrom = 0;
+                if (length > 0) {
+                    listener.onFrame(frame, length);
+                }
+            }
+            scanFrom = buffer.size();
+        }
+
+        private int decode(int encodedLength) {
+            int length = 0;
+            int i = 0;
+            while (i < encodedLength) {
+                int code = buffer.get(i++) & 0xFF;
+                for (int j = 1; j < code; j++) {
+                    if (i >= encodedLength) {
+                        // Truncated block, the frame is corrupt
+                        return 0;
+                    }
+                    frame[length++] = buffer.get(i++);
+                }
+                if (code < 0xFF && i < encodedLength) {
+                    frame[length++] = 0;
+                }
+            }
+            return length;
+        }
+
+        @Override
+        protected void reset() {
+            scanFrom = 0;
+        }
+    }
+}
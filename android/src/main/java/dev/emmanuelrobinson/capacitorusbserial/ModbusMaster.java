@@ -0,0 +1,264 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Modbus RTU master polling groups of registers or coils on a connection.
+ *
+ * The scheduler only queues polls; each poll runs as a task on the writer
+ * thread, in order with other writes, and keeps the inter-frame silence
+ * since the previous frame. A group whose poll is still queued or running
+ * skips its next tick instead of piling up. Only values that differ from
+ * the previous poll are reported, and a failing group is reported once
+ * until it recovers.
+ */
+public class ModbusMaster {
+
+    public interface Listener {
+        /**
+         * @param changed offsets into values that differ from the previous
+         *                poll; all of them on the first poll
+         */
+        void onRegistersChanged(PollGroup group, int[] values, int[] changed);
+
+        void onPollFailed(PollGroup group, String message);
+    }
+
+    public static final int DEFAULT_TIMEOUT = 1000;
+    public static final int DEFAULT_INTERVAL = 1000;
+
+    public static class PollGroup {
+
+        final String id;
+        final int slave;
+        final int function;
+        final int address;
+        final int count;
+        final int intervalMs;
+        final byte[] request;
+
+        // Only touched on the writer thread
+        private int[] values;
+        // Also set by a poll failed while the queue is closing, on the closing thread
+        private volatile boolean failing = false;
+        private final AtomicBoolean queued = new AtomicBoolean(false);
+
+        public PollGroup(String id, int slave, int function, int address, int count, int intervalMs) {
+            if (intervalMs <= 0) {
+                throw new IllegalArgumentException("interval must be positive");
+            }
+            this.id = id;
+            this.slave = slave;
+            this.function = function;
+            this.address = address;
+            this.count = count;
+            this.intervalMs = intervalMs;
+            this.request = ModbusRtu.readRequest(slave, function, address, count);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public int getSlave() {
+            return slave;
+        }
+
+        public int getFunction() {
+            return function;
+        }
+
+        public int getAddress() {
+            return address;
+        }
+    }
+
+    private final Transmitter transmitter;
+    private final ReceivePipeline pipeline;
+    private final ConnectionStats stats;
+    private final ScheduledExecutorService scheduler;
+    private final long silenceNanos;
+    private final int timeout;
+    private final Listener listener;
+
+    private final List<PollGroup> groups;
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+    private volatile boolean running = false;
+    // Only touched on the writer thread
+    private long lastFrameNanos;
+
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong changes = new AtomicLong();
+
+    public ModbusMaster(
+        List<PollGroup> groups,
+        Transmitter transmitter,
+        ReceivePipeline pipeline,
+        ConnectionStats stats,
+        ScheduledExecutorService scheduler,
+        int baudRate,
+        int timeout,
+        Listener listener
+    ) {
+        this.groups = new ArrayList<>(groups);
+        this.transmitter = transmitter;
+        this.pipeline = pipeline;
+        this.stats = stats;
+        this.scheduler = scheduler;
+        this.silenceNanos = ModbusRtu.interFrameSilenceNanos(baudRate);
+        this.timeout = timeout;
+        this.listener = listener;
+        this.lastFrameNanos = System.nanoTime() - silenceNanos;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (PollGroup group : groups) {
+            tasks.add(scheduler.scheduleAtFixedRate(() -> queuePoll(group), 0, group.intervalMs, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Stops scheduling polls; one already queued is skipped.
+     */
+    public synchronized void stop() {
+        running = false;
+        for (ScheduledFuture<?> task : tasks) {
+            task.cancel(false);
+        }
+        tasks.clear();
+    }
+
+    public long getPolls() {
+        return polls.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getChanges() {
+        return changes.get();
+    }
+
+    private void queuePoll(PollGroup group) {
+        if (!running || !group.queued.compareAndSet(false, true)) {
+            return;
+        }
+        if (!transmitter.offer(new PollTask(group))) {
+            // Queue full or closed, try again on the next tick
+            group.queued.set(false);
+        }
+    }
+
+    private class PollTask extends WriteQueue.Task {
+
+        private final PollGroup group;
+        private int[] changed;
+        private int[] values;
+
+        PollTask(PollGroup group) {
+            this.group = group;
+        }
+
+        @Override
+        protected void execute() throws IOException {
+            if (!running) {
+                return;
+            }
+
+            Transaction transaction = new Transaction(
+                group.request,
+                ModbusRtu.readFrameLength(group.function, group.count),
+                timeout,
+                ModbusRtu.readResponseLength(group.function, group.count)
+            );
+            try {
+                long wait = lastFrameNanos + silenceNanos - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                }
+
+                long startedAt = System.nanoTime();
+                transaction.start();
+                pipeline.setTransaction(transaction);
+                transmitter.writeNow(group.request, 0, group.request.length, timeout);
+                stats.recordWrite(group.request.length, System.nanoTime() - startedAt);
+                transaction.await();
+            } catch (InterruptedException e) {
+                throw new IOException("Connection closed");
+            } finally {
+                pipeline.setTransaction(null);
+                lastFrameNanos = System.nanoTime();
+            }
+
+            polls.incrementAndGet();
+            if (transaction.getStatus() == Transaction.Status.TIMEOUT) {
+                throw new IOException("No response from slave " + group.slave);
+            }
+            values = ModbusRtu.decodeReadResponse(
+                transaction.getResponse(),
+                transaction.getLength(),
+                group.slave,
+                group.function,
+                group.count
+            );
+            changed = diff(group.values, values);
+            group.values = values;
+        }
+
+        @Override
+        protected void complete(Exception error) {
+            group.queued.set(false);
+            if (error != null) {
+                failures.incrementAndGet();
+                if (!group.failing && running) {
+                    group.failing = true;
+                    listener.onPollFailed(group, error.getMessage());
+                }
+                return;
+            }
+
+            group.failing = false;
+            if (changed != null && changed.length > 0) {
+                changes.incrementAndGet();
+                listener.onRegistersChanged(group, values, changed);
+            }
+        }
+    }
+
+    private static int[] diff(int[] previous, int[] current) {
+        if (previous == null) {
+            int[] all = new int[current.length];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        int count = 0;
+        for (int i = 0; i < current.length; i++) {
+            if (previous[i] != current[i]) {
+                count++;
+            }
+        }
+        int[] changed = new int[count];
+        for (int i = 0, n = 0; i < current.length; i++) {
+            if (previous[i] != current[i]) {
+                changed[n++] = i;
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,154 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.io.IOException;
+
+/**
+ * Modbus RTU framing for the read functions: requests, response lengths,
+ * CRC-16 and decoding of register and coil values.
+ */
+public final class ModbusRtu {
+
+    public static final int READ_COILS = 1;
+    public static final int READ_DISCRETE_INPUTS = 2;
+    public static final int READ_HOLDING_REGISTERS = 3;
+    public static final int READ_INPUT_REGISTERS = 4;
+
+    public static final int MAX_REGISTERS = 125;
+    public static final int MAX_BITS = 2000;
+
+    private static final int EXCEPTION_RESPONSE_LENGTH = 5;
+
+    // CRC-16/MODBUS, reflected polynomial 0xA001
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private ModbusRtu() {
+    }
+
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    public static boolean isBitFunction(int function) {
+        return function == READ_COILS || function == READ_DISCRETE_INPUTS;
+    }
+
+    /**
+     * Checks the arguments of a read request, throwing IllegalArgumentException
+     * if the slave, function or quantity is out of range.
+     */
+    public static void validateRead(int slave, int function, int address, int count) {
+        if (slave < 1 || slave > 247) {
+            throw new IllegalArgumentException("slave must be between 1 and 247");
+        }
+        if (function < READ_COILS || function > READ_INPUT_REGISTERS) {
+            throw new IllegalArgumentException("Unsupported function " + function);
+        }
+        if (address < 0 || address > 0xFFFF) {
+            throw new IllegalArgumentException("address must be between 0 and 65535");
+        }
+        int max = isBitFunction(function) ? MAX_BITS : MAX_REGISTERS;
+        if (count < 1 || count > max || address + count > 0x10000) {
+            throw new IllegalArgumentException("count must be between 1 and " + max);
+        }
+    }
+
+    public static byte[] readRequest(int slave, int function, int address, int count) {
+        validateRead(slave, function, address, count);
+        byte[] frame = new byte[8];
+        frame[0] = (byte) slave;
+        frame[1] = (byte) function;
+        frame[2] = (byte) (address >> 8);
+        frame[3] = (byte) address;
+        frame[4] = (byte) (count >> 8);
+        frame[5] = (byte) count;
+        appendCrc(frame, 6);
+        return frame;
+    }
+
+    /**
+     * Length of a complete normal response to a read.
+     */
+    public static int readResponseLength(int function, int count) {
+        int byteCount = isBitFunction(function) ? (count + 7) / 8 : count * 2;
+        return 3 + byteCount + 2;
+    }
+
+    /**
+     * Response length once the function byte is in: an exception response is
+     * shorter than the normal one.
+     */
+    public static Transaction.FrameLength readFrameLength(int function, int count) {
+        int normalLength = readResponseLength(function, count);
+        return (response, length) -> {
+            if (length < 2) {
+                return 0;
+            }
+            return (response[1] & 0x80) != 0 ? EXCEPTION_RESPONSE_LENGTH : normalLength;
+        };
+    }
+
+    /**
+     * Checks a response to a read and decodes it into values: unsigned 16-bit
+     * registers, or 0/1 per coil or input.
+     */
+    public static int[] decodeReadResponse(byte[] response, int length, int slave, int function, int count) throws IOException {
+        if (length < EXCEPTION_RESPONSE_LENGTH) {
+            throw new IOException("Response too short");
+        }
+        int crc = (response[length - 2] & 0xFF) | (response[length - 1] & 0xFF) << 8;
+        if (crc != crc16(response, 0, length - 2)) {
+            throw new IOException("CRC mismatch");
+        }
+        if ((response[0] & 0xFF) != slave) {
+            throw new IOException("Response from slave " + (response[0] & 0xFF) + " instead of " + slave);
+        }
+        if ((response[1] & 0xFF) == (function | 0x80)) {
+            throw new IOException("Exception " + (response[2] & 0xFF) + " from slave " + slave);
+        }
+        if ((response[1] & 0xFF) != function || length != readResponseLength(function, count)) {
+            throw new IOException("Malformed response");
+        }
+
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (isBitFunction(function)) {
+                values[i] = (response[3 + i / 8] >> (i % 8)) & 1;
+            } else {
+                values[i] = (response[3 + i * 2] & 0xFF) << 8 | (response[4 + i * 2] & 0xFF);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Minimum idle time between frames, 3.5 character times, or the 1.75 ms
+     * the specification fixes above 19200 baud.
+     */
+    public static long interFrameSilenceNanos(int baudRate) {
+        if (baudRate > 19200) {
+            return 1_750_000L;
+        }
+        // 3.5 characters of 11 bits: start, 8 data, parity or second stop, stop
+        return 38_500_000_000L / Math.max(1, baudRate);
+    }
+
+    private static void appendCrc(byte[] frame, int length) {
+        int crc = crc16(frame, 0, length);
+        frame[length] = (byte) crc;
+        frame[length + 1] = (byte) (crc >> 8);
+    }
+}
@@ -0,0 +1,190 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outstanding USB permission requests, one per device, resolved when the
+ * permission broadcast arrives. The broadcast only says that the user
+ * answered: its receiver is exported, so the grant itself is always read back
+ * from UsbManager and a forged broadcast cannot grant access.
+ *
+ * Every request gets its own PendingIntent request code and carries the
+ * device ID, so results for different devices never overwrite each other.
+ * Callers asking for a device that already has a request in flight join it
+ * instead of raising a second dialog. Grants are cached until the device is
+ * detached.
+ */
+public class PermissionManager {
+
+    public static final String ACTION_USB_PERMISSION = "dev.emmanuelrobinson.capacitorusbserial.USB_PERMISSION";
+    private static final String EXTRA_DEVICE_ID = "dev.emmanuelrobinson.capacitorusbserial.DEVICE_ID";
+
+    public interface Callback {
+        void onResult(UsbDevice device, boolean granted);
+    }
+
+    public interface BatchCallback {
+        /**
+         * Results in request order.
+         */
+        void onResults(Map<UsbDevice, Boolean> results);
+    }
+
+    private static class Request {
+
+        final UsbDevice device;
+        final List<Callback> callbacks = new ArrayList<>();
+
+        Request(UsbDevice device) {
+            this.device = device;
+        }
+    }
+
+    private final Context context;
+    private final UsbManager usbManager;
+    private final Map<Integer, Request> pending = new HashMap<>();
+    private final Set<Integer> granted = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger nextRequestCode = new AtomicInteger(1);
+
+    public PermissionManager(Context context, UsbManager usbManager) {
+        this.context = context;
+        this.usbManager = usbManager;
+    }
+
+    public boolean hasPermission(UsbDevice device) {
+        if (granted.contains(device.getDeviceId())) {
+            return true;
+        }
+        if (usbManager.hasPermission(device)) {
+            granted.add(device.getDeviceId());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Calls back right away if permission is already granted, otherwise once
+     * the user has answered the system dialog.
+     */
+    public void request(UsbDevice device, Callback callback) {
+        if (hasPermission(device)) {
+            callback.onResult(device, true);
+            return;
+        }
+
+        synchronized (pending) {
+            Request request = pending.get(device.getDeviceId());
+            if (request != null) {
+                request.callbacks.add(callback);
+                return;
+            }
+            request = new Request(device);
+            request.callbacks.add(callback);
+            pending.put(device.getDeviceId(), request);
+        }
+        usbManager.requestPermission(device, createPermissionIntent(device));
+    }
+
+    /**
+     * Requests permission for each device in turn, since the system shows one
+     * dialog at a time, and reports all results together.
+     */
+    public void requestAll(List<UsbDevice> devices, BatchCallback callback) {
+        requestNext(devices, 0, new LinkedHashMap<>(), callback);
+    }
+
+    private void requestNext(List<UsbDevice> devices, int index, Map<UsbDevice, Boolean> results, BatchCallback callback) {
+        if (index == devices.size()) {
+            callback.onResults(results);
+            return;
+        }
+        request(devices.get(index), (device, isGranted) -> {
+            results.put(device, isGranted);
+            requestNext(devices, index + 1, results, callback);
+        });
+    }
+
+    /**
+     * Handles an {@link #ACTION_USB_PERMISSION} broadcast.
+     */
+    public void onPermissionResult(Intent intent) {
+        int deviceId = intent.getIntExtra(EXTRA_DEVICE_ID, -1);
+        Request request;
+        synchronized (pending) {
+            request = pending.remove(deviceId);
+        }
+        if (request == null) {
+            return;
+        }
+
+        // EXTRA_PERMISSION_GRANTED can be forged by any app, only the system's record counts
+        boolean isGranted = usbManager.hasPermission(request.device);
+        if (isGranted) {
+            granted.add(deviceId);
+        }
+        for (Callback callback : request.callbacks) {
+            callback.onResult(request.device, isGranted);
+        }
+    }
+
+    /**
+     * Forgets the grant, which Android drops on unplug, and fails a request
+     * still waiting for the device.
+     */
+    public void onDetached(UsbDevice device) {
+        granted.remove(device.getDeviceId());
+
+        Request request;
+        synchronized (pending) {
+            request = pending.remove(device.getDeviceId());
+        }
+        if (request != null) {
+            for (Callback callback : request.callbacks) {
+                callback.onResult(device, false);
+            }
+        }
+    }
+
+    /**
+     * Fails every outstanding request, e.g. when the plugin goes away.
+     */
+    public void cancelAll() {
+        List<Request> requests;
+        synchronized (pending) {
+            requests = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        for (Request request : requests) {
+            for (Callback callback : request.callbacks) {
+                callback.onResult(request.device, false);
+            }
+        }
+    }
+
+    private PendingIntent createPermissionIntent(UsbDevice device) {
+        Intent intent = new Intent(ACTION_USB_PERMISSION);
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(EXTRA_DEVICE_ID, device.getDeviceId());
+
+        // The system fills in the device and grant extras, which an immutable intent would drop
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            flags |= PendingIntent.FLAG_MUTABLE;
+        }
+        return PendingIntent.getBroadcast(context, nextRequestCode.getAndIncrement(), intent, flags);
+    }
+}
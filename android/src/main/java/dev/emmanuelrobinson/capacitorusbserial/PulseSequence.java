@@ -0,0 +1,97 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timed DTR, RTS and break toggles, such as a bootloader entry sequence. The
+ * steps run back to back on the writer thread, so they are ordered with
+ * writes and not stretched by a bridge round trip each.
+ *
+ * Delays are measured from the start of the sequence rather than from the
+ * end of the previous step, so the time a control transfer takes does not
+ * add up over many steps.
+ */
+public class PulseSequence {
+
+    public interface Lines {
+        void setDtr(boolean value) throws IOException;
+
+        void setRts(boolean value) throws IOException;
+
+        void setBreak(boolean value) throws IOException;
+    }
+
+    public static final int MAX_STEPS = 256;
+    public static final int MAX_DELAY_MS = 10000;
+
+    private static class Step {
+
+        final Boolean dtr;
+        final Boolean rts;
+        final Boolean breakState;
+        final long delayNanos;
+
+        Step(Boolean dtr, Boolean rts, Boolean breakState, long delayNanos) {
+            this.dtr = dtr;
+            this.rts = rts;
+            this.breakState = breakState;
+            this.delayNanos = delayNanos;
+        }
+    }
+
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * Adds a step that sets the given lines, null leaving a line unchanged,
+     * and then holds them for delayMs.
+     */
+    public PulseSequence add(Boolean dtr, Boolean rts, Boolean breakState, int delayMs) {
+        if (delayMs < 0 || delayMs > MAX_DELAY_MS) {
+            throw new IllegalArgumentException("delayMs must be between 0 and " + MAX_DELAY_MS);
+        }
+        if (steps.size() == MAX_STEPS) {
+            throw new IllegalArgumentException("A sequence has at most " + MAX_STEPS + " steps");
+        }
+        steps.add(new Step(dtr, rts, breakState, delayMs * 1_000_000L));
+        return this;
+    }
+
+    public int size() {
+        return steps.size();
+    }
+
+    /**
+     * Holds break for durationMs and releases it.
+     */
+    public static PulseSequence breakSignal(int durationMs) {
+        return new PulseSequence().add(null, null, true, durationMs).add(null, null, false, 0);
+    }
+
+    /**
+     * Runs every step. Returns how long the sequence took, in ns.
+     */
+    public long run(Lines lines) throws IOException, InterruptedException {
+        long startedAt = System.nanoTime();
+        long due = startedAt;
+        for (Step step : steps) {
+            if (step.dtr != null) {
+                lines.setDtr(step.dtr);
+            }
+            if (step.rts != null) {
+                lines.setRts(step.rts);
+            }
+            if (step.breakState != null) {
+                lines.setBreak(step.breakState);
+            }
+
+            due += step.delayNanos;
+            long remaining;
+            while ((remaining = due - System.nanoTime()) > 0) {
+                Thread.sleep(remaining / 1_000_000L, (int) (remaining % 1_000_000L));
+            }
+        }
+        return System.nanoTime() - startedAt;
+    }
+}
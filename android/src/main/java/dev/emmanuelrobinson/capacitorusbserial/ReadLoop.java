@@ -0,0 +1,94 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.io.IOException;
+
+/**
+ * Reader thread of a port. Every read lands in one buffer allocated up front
+ * and is handed to the listener as a slice of it, so the receive path does
+ * not allocate per read. The listener must copy anything it keeps beyond the
+ * call, which every stage of the receive pipeline already does.
+ *
+ * The loop ends when stopped or on the first read error; an error while
+ * stopping (the port being closed under a blocked read) is not reported.
+ */
+public class ReadLoop implements Runnable {
+
+    /**
+     * The receive side of a port, as seen by the reader thread.
+     */
+    public interface Source {
+        /**
+         * @return bytes read into the start of the buffer, 0 on timeout
+         */
+        int read(byte[] buffer, int timeout) throws IOException;
+    }
+
+    public interface Listener {
+        void onRead(byte[] data, int length);
+
+        void onReadError(Exception e);
+    }
+
+    private final Source source;
+    private final byte[] buffer;
+    private final int readTimeout;
+    private final Runnable onStart;
+    private final Listener listener;
+    private volatile boolean running = false;
+
+    /**
+     * @param readTimeout ms per read, 0 to block until data arrives
+     * @param onStart     run on the reader thread before the first read, or null
+     */
+    public ReadLoop(Source source, int bufferSize, int readTimeout, Runnable onStart, Listener listener) {
+        this.source = source;
+        this.buffer = new byte[Math.max(1, bufferSize)];
+        this.readTimeout = Math.max(0, readTimeout);
+        this.onStart = onStart;
+        this.listener = listener;
+    }
+
+    public synchronized void start(String threadName) {
+        if (running) {
+            return;
+        }
+        running = true;
+        new Thread(this, threadName).start();
+    }
+
+    /**
+     * Asks the loop to end after the read in progress; closing the port
+     * releases a read that blocks without a timeout.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getBufferSize() {
+        return buffer.length;
+    }
+
+    @Override
+    public void run() {
+        if (onStart != null) {
+            onStart.run();
+        }
+        try {
+            while (running) {
+                int length = source.read(buffer, readTimeout);
+                if (length > 0 && running) {
+                    listener.onRead(buffer, length);
+                }
+            }
+        } catch (Exception e) {
+            if (running) {
+                running = false;
+                listener.onReadError(e);
+            }
+        }
+    }
+}
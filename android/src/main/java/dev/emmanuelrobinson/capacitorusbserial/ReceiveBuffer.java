@@ -0,0 +1,107 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+/**
+ * Bounded buffer between the reader thread and pull-based consumers.
+ *
+ * When full, incoming bytes either replace the oldest buffered bytes, are
+ * dropped, or block the reader thread until a consumer makes room (which in
+ * turn leaves data in the device and host FIFOs).
+ */
+public class ReceiveBuffer {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST("dropOldest"),
+        DROP_NEWEST("dropNewest"),
+        BLOCK("block");
+
+        private final String name;
+
+        OverflowPolicy(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the policy, or null if the name is unknown
+         */
+        public static OverflowPolicy fromName(String name) {
+            for (OverflowPolicy policy : values()) {
+                if (policy.name.equals(name)) {
+                    return policy;
+                }
+            }
+            return null;
+        }
+    }
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final ByteRingBuffer buffer;
+    private final OverflowPolicy policy;
+    private boolean closed = false;
+
+    public ReceiveBuffer(int capacity, OverflowPolicy policy) {
+        this.buffer = new ByteRingBuffer(capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * Buffers bytes according to the overflow policy and returns how many were dropped.
+     */
+    public synchronized int write(byte[] data, int offset, int length) {
+        int dropped = 0;
+        while (length > 0 && !closed) {
+            int n = buffer.write(data, offset, length);
+            offset += n;
+            length -= n;
+            if (length == 0) {
+                break;
+            }
+
+            switch (policy) {
+                case DROP_OLDEST:
+                    int discard = Math.min(length, buffer.size());
+                    buffer.skip(discard);
+                    dropped += discard;
+                    break;
+                case DROP_NEWEST:
+                    return dropped + length;
+                case BLOCK:
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return dropped + length;
+                    }
+                    break;
+            }
+        }
+        return closed ? dropped + length : dropped;
+    }
+
+    /**
+     * Takes up to {@code length} bytes without blocking.
+     */
+    public synchronized int read(byte[] dst, int offset, int length) {
+        int n = buffer.read(dst, offset, length);
+        if (n > 0 && policy == OverflowPolicy.BLOCK) {
+            notifyAll();
+        }
+        return n;
+    }
+
+    public synchronized int size() {
+        return buffer.size();
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Releases a reader thread blocked on a full buffer.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,220 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Everything received bytes pass through between the reader thread and the
+ * bridge: an active transaction first, then the optional framer or batcher
+ * and delivery filter in push mode, or the bounded receive buffer in pull
+ * mode. It has no Android dependencies so it can be driven by host tests and
+ * benchmarks.
+ */
+public class ReceivePipeline {
+
+    public interface Sink {
+        void onData(byte[] data, int length);
+
+        void onFrame(byte[] frame, int length);
+
+        /**
+         * Bytes were added to the receive buffer while push delivery is off.
+         */
+        void onBuffered();
+    }
+
+    private final Sink sink;
+    private final ConnectionStats stats;
+    private final ReceiveBuffer receiveBuffer;
+    private Framer framer;
+    private DataBatcher batcher;
+    private volatile DeliveryFilter filter;
+    private volatile boolean pushEnabled = true;
+    private volatile Transaction transaction;
+
+    // Set by the reader thread, and by setPushEnabled for the bytes it drains
+    private long receivedNanos;
+    private final Framer.Listener frameListener = this::deliverFrame;
+
+    public ReceivePipeline(Sink sink, ConnectionStats stats, ReceiveBuffer receiveBuffer) {
+        this.sink = sink;
+        this.stats = stats;
+        this.receiveBuffer = receiveBuffer;
+    }
+
+    public void setFramer(Framer framer) {
+        this.framer = framer;
+    }
+
+    public void setBatching(int maxBytes, long maxLatencyMs, byte[] delimiter, ScheduledExecutorService scheduler) {
+        this.batcher = new DataBatcher(maxBytes, maxLatencyMs, delimiter, scheduler, this::deliverBatch);
+    }
+
+    /**
+     * Replaces the delivery filter, or removes it when null. A unit held by the
+     * previous filter is delivered first.
+     */
+    public void setFilter(DeliveryFilter filter) {
+        DeliveryFilter previous = this.filter;
+        this.filter = filter;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Switches between push delivery and buffering for pull-based reads. Bytes
+     * still buffered when push is switched on are delivered first.
+     */
+    public void setPushEnabled(boolean enabled) {
+        pushEnabled = enabled;
+        if (enabled) {
+            synchronized (this) {
+                receivedNanos = System.nanoTime();
+                drainReceiveBuffer();
+            }
+        }
+    }
+
+    /**
+     * Routes received bytes to the transaction until its response is complete,
+     * or back to normal delivery when null.
+     */
+    public void setTransaction(Transaction transaction) {
+        this.transaction = transaction;
+    }
+
+    public ReceiveBuffer getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    public ConnectionStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Bytes dropped by the framer while resynchronizing.
+     */
+    public long getDiscardedBytes() {
+        Framer activeFramer = framer;
+        return activeFramer != null ? activeFramer.getDiscardedBytes() : 0;
+    }
+
+    /**
+     * Units dropped by the current delivery filter.
+     */
+    public long getFilteredEvents() {
+        DeliveryFilter activeFilter = filter;
+        return activeFilter != null ? activeFilter.getFiltered() : 0;
+    }
+
+    /**
+     * Target for a {@link DeliveryFilter}, emitting units the way this pipeline
+     * would without a filter.
+     */
+    public void deliver(byte[] data, int length, long since) {
+        if (framer != null) {
+            sink.onFrame(data, length);
+        } else {
+            sink.onData(data, length);
+        }
+        stats.recordEvent(System.nanoTime() - since);
+    }
+
+    public void onData(byte[] data, int offset, int length) {
+        receivedNanos = System.nanoTime();
+        stats.recordRead(length);
+
+        Transaction activeTransaction = transaction;
+        if (activeTransaction != null) {
+            int consumed = activeTransaction.accept(data, offset, length);
+            offset += consumed;
+            length -= consumed;
+            if (length == 0) {
+                return;
+            }
+        }
+
+        if (!pushEnabled) {
+            // Pull mode, may block the reader thread with the block overflow policy
+            stats.recordDropped(receiveBuffer.write(data, offset, length));
+            sink.onBuffered();
+            if (pushEnabled) {
+                // Switched to push while writing, setPushEnabled may have drained before these bytes landed
+                synchronized (this) {
+                    drainReceiveBuffer();
+                }
+            }
+            return;
+        }
+
+        // Only contended while push is being switched on
+        synchronized (this) {
+            drainReceiveBuffer();
+            push(data, offset, length);
+        }
+    }
+
+    private void push(byte[] data, int offset, int length) {
+        Framer activeFramer = framer;
+        DataBatcher activeBatcher = batcher;
+        if (activeFramer != null) {
+            activeFramer.push(data, offset, length, frameListener);
+        } else if (activeBatcher != null) {
+            activeBatcher.append(data, offset, length, receivedNanos);
+        } else if (offset == 0) {
+            deliverBatch(data, length, receivedNanos);
+        } else {
+            byte[] copy = new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+            deliverBatch(copy, length, receivedNanos);
+        }
+    }
+
+    /**
+     * Pushes bytes buffered in pull mode, ahead of anything read later.
+     * Caller holds this.
+     */
+    private void drainReceiveBuffer() {
+        int size = receiveBuffer.size();
+        while (size > 0) {
+            byte[] buffered = new byte[size];
+            int n = receiveBuffer.read(buffered, 0, size);
+            push(buffered, 0, n);
+            size = receiveBuffer.size();
+        }
+    }
+
+    /**
+     * Flushes the batcher; call once the reader has stopped.
+     */
+    public void close() {
+        DataBatcher activeBatcher = batcher;
+        if (activeBatcher != null) {
+            activeBatcher.close();
+        }
+        DeliveryFilter activeFilter = filter;
+        if (activeFilter != null) {
+            activeFilter.close();
+        }
+    }
+
+    private void deliverBatch(byte[] data, int length, long since) {
+        DeliveryFilter activeFilter = filter;
+        if (activeFilter != null) {
+            activeFilter.offer(data, length, since);
+        } else {
+            sink.onData(data, length);
+            stats.recordEvent(System.nanoTime() - since);
+        }
+    }
+
+    private void deliverFrame(byte[] frame, int length) {
+        DeliveryFilter activeFilter = filter;
+        if (activeFilter != null) {
+            activeFilter.offer(frame, length, receivedNanos);
+        } else {
+            sink.onFrame(frame, length);
+            stats.recordEvent(System.nanoTime() - receivedNanos);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+/**
+ * Bounded store for the data and frames delivered while the app is paused,
+ * kept as units with their receive time so they can be handed back in large
+ * batches once it resumes. When full, the oldest units are dropped to make
+ * room and counted as dropped bytes.
+ *
+ * Units are offered from the reader, batcher and filter threads; resume()
+ * runs on one other thread and keeps draining until the spool is empty
+ * before it stops spooling, so live units never overtake the backlog.
+ */
+public class ReceiveSpool {
+
+    public interface Sink {
+        /**
+         * Consecutive data units, merged.
+         */
+        void onData(byte[] data, int length, long timestamp);
+
+        /**
+         * Consecutive frames, in order.
+         */
+        void onFrames(byte[][] frames, long[] timestamps, int count);
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+
+    static final byte DATA = 0;
+    static final byte FRAME = 1;
+
+    // Kind, payload length, receive time in epoch ms
+    private static final int HEADER_SIZE = 1 + 4 + 8;
+
+    private final ByteRingBuffer buffer;
+    private final ConnectionStats stats;
+    private final int batchSize;
+    private final byte[] header = new byte[HEADER_SIZE];
+    private boolean spooling = false;
+    private int units = 0;
+
+    public ReceiveSpool(int capacity, int batchSize, ConnectionStats stats) {
+        this.buffer = new ByteRingBuffer(capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.stats = stats;
+    }
+
+    public synchronized void pause() {
+        spooling = true;
+    }
+
+    public synchronized boolean isSpooling() {
+        return spooling;
+    }
+
+    /**
+     * Units currently held.
+     */
+    public synchronized int size() {
+        return units;
+    }
+
+    /**
+     * Keeps a copy of the unit while paused. Returns false, keeping nothing,
+     * if it should be delivered right away.
+     */
+    public synchronized boolean offer(byte kind, byte[] data, int length, long timestamp) {
+        if (!spooling) {
+            return false;
+        }
+        if (kind == DATA && length == 0) {
+            return true;
+        }
+
+        int size = HEADER_SIZE + length;
+        if (size > buffer.capacity()) {
+            stats.recordDropped(length);
+            return true;
+        }
+        while (buffer.free() < size) {
+            dropOldest();
+        }
+
+        header[0] = kind;
+        putInt(header, 1, length);
+        putLong(header, 5, timestamp);
+        buffer.write(header, 0, HEADER_SIZE);
+        buffer.write(data, 0, length);
+        units++;
+        return true;
+    }
+
+    /**
+     * Hands the backlog to the sink in batches of about the batch size, then
+     * stops spooling. The sink is called without holding the spool, so the
+     * reader keeps running while the backlog is delivered.
+     */
+    public void resume(Sink sink) {
+        while (true) {
+            byte[][] frames;
+            long[] timestamps;
+            int count = 0;
+            byte[] data = null;
+            int length = 0;
+            long timestamp = 0;
+
+            synchronized (this) {
+                if (units == 0) {
+                    spooling = false;
+                    return;
+                }
+
+                if (buffer.get(0) == DATA) {
+                    // Merge data units up to the batch size, at least one
+                    int total = 0;
+                    for (int index = 0, n = 0; n < units && buffer.get(index) == DATA; n++) {
+                        int unitLength = readInt(index + 1);
+                        if (total > 0 && total + unitLength > batchSize) {
+                            break;
+                        }
+                        total += unitLength;
+                        index += HEADER_SIZE + unitLength;
+                    }
+                    data = new byte[total];
+                    timestamp = readLong(5);
+                    while (length < total) {
+                        int unitLength = readInt(1);
+                        buffer.skip(HEADER_SIZE);
+                        buffer.read(data, length, unitLength);
+                        length += unitLength;
+                        units--;
+                    }
+                    frames = null;
+                    timestamps = null;
+                } else {
+                    int total = 0;
+                    int frameCount = 0;
+                    for (int index = 0; frameCount < units && buffer.get(index) == FRAME; frameCount++) {
+                        int unitLength = readInt(index + 1);
+                        if (total > 0 && total + unitLength > batchSize) {
+                            break;
+                        }
+                        total += unitLength;
+                        index += HEADER_SIZE + unitLength;
+                    }
+                    frames = new byte[frameCount][];
+                    timestamps = new long[frameCount];
+                    for (; count < frameCount; count++) {
+                        frames[count] = new byte[readInt(1)];
+                        timestamps[count] = readLong(5);
+                        buffer.skip(HEADER_SIZE);
+                        buffer.read(frames[count], 0, frames[count].length);
+                        units--;
+                    }
+                }
+            }
+
+            if (data != null) {
+                sink.onData(data, length, timestamp);
+            } else {
+                sink.onFrames(frames, timestamps, count);
+            }
+        }
+    }
+
+    /**
+     * Drops the backlog and stops spooling.
+     */
+    public synchronized void clear() {
+        buffer.clear();
+        units = 0;
+        spooling = false;
+    }
+
+    private void dropOldest() {
+        int length = readInt(1);
+        buffer.skip(HEADER_SIZE + length);
+        units--;
+        stats.recordDropped(length);
+    }
+
+    private int readInt(int index) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = value << 8 | (buffer.get(index + i) & 0xFF);
+        }
+        return value;
+    }
+
+    private long readLong(int index) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (buffer.get(index + i) & 0xFF);
+        }
+        return value;
+    }
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        for (int i = 3; i >= 0; i--) {
+            dst[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void putLong(byte[] dst, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            dst[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,1420 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.os.Process;
+import android.util.Log;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+import com.getcapacitor.PluginCall;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single open serial port. Every connection owns its port, its reader
+ * thread and its receive pipeline, so several ports
+ * (on one or more devices) can run side by side.
+ *
+ * The reader, writer, plugin and main threads all touch a connection. They
+ * coordinate through its {@link ConnectionState}: the data path checks the
+ * state without locking, and only the transitions that open or release the
+ * port synchronize on the connection.
+ */
+public class SerialConnection implements ReadLoop.Listener, ReceivePipeline.Sink, ModbusMaster.Listener {
+    private static final String TAG = "SerialConnection";
+    private static final int DEFAULT_WRITE_TIMEOUT = 1000;
+    private static final int DEFAULT_BAUD_RATE = 115200;
+    private static final int HIGH_THROUGHPUT_BUFFER_SIZE = 16 * 1024;
+
+    private final UsbSerialPlugin plugin;
+    private final ScheduledExecutorService scheduler;
+    private final TraceBuffer trace;
+    private final String id;
+
+    // Identity of the device, used to find it again after it was re-attached
+    private final int vendorId;
+    private final int productId;
+    private final String serialNumber;
+    private final int portNumber;
+
+    // Replaced when the session resumes on a re-attached device
+    private volatile UsbDevice device;
+    private volatile UsbSerialPort serialPort;
+
+    private JSObject serialOptions;
+    private boolean autoReconnect = false;
+    private int reconnectTimeout = 0;
+    private long suspendedAtNanos;
+    private ScheduledFuture<?> reconnectTimeoutTask;
+
+    private final AtomicReference<ConnectionState> state = new AtomicReference<>(ConnectionState.CONNECTING);
+    // Guarded by this
+    private boolean portOpen = false;
+
+    // Set once while connecting and kept after close, closed parts reject further use
+    private volatile ReadLoop readLoop;
+    private volatile DataEncoder.Encoding encoding = DataEncoder.Encoding.UTF8_HEX;
+    private volatile ReceivePipeline pipeline;
+    private volatile Transmitter transmitter;
+    private volatile ReceiveSpool spool;
+    private int writeTimeout = DEFAULT_WRITE_TIMEOUT;
+    private final ConnectionStats stats = new ConnectionStats();
+    private ScheduledFuture<?> statsTask;
+    private final List<PendingRead> pendingReads = new ArrayList<>();
+    private volatile SessionRecorder recorder;
+    private volatile boolean recordTx;
+    private ScheduledFuture<?> controlLinesTask;
+    private volatile FileStreamer activeStream;
+    // Guarded by this
+    private ModbusMaster modbusMaster;
+    private EnumSet<UsbSerialPort.ControlLine> lastControlLines;
+
+    public SerialConnection(
+        UsbSerialPlugin plugin,
+        ScheduledExecutorService scheduler,
+        TraceBuffer trace,
+        UsbDevice device,
+        UsbSerialPort serialPort
+    ) {
+        this.plugin = plugin;
+        this.scheduler = scheduler;
+        this.trace = trace;
+        this.device = device;
+        this.serialPort = serialPort;
+        this.id = createId(device.getDeviceId(), serialPort.getPortNumber());
+        this.vendorId = device.getVendorId();
+        this.productId = device.getProductId();
+        this.serialNumber = readSerialNumber(device);
+        this.portNumber = serialPort.getPortNumber();
+    }
+
+    public static String createId(int deviceId, int portNumber) {
+        return deviceId + ":" + portNumber;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public UsbDevice getDevice() {
+        return device;
+    }
+
+    public int getPortNumber() {
+        return portNumber;
+    }
+
+    public ConnectionState getState() {
+        return state.get();
+    }
+
+    /**
+     * Moves to the next state if the current one allows it. Returns false,
+     * changing nothing, otherwise.
+     */
+    private boolean transition(ConnectionState next) {
+        while (true) {
+            ConnectionState current = state.get();
+            if (!current.canTransitionTo(next)) {
+                return false;
+            }
+            if (state.compareAndSet(current, next)) {
+                trace.trace(TraceBuffer.Event.STATE, device.getDeviceId(), next.ordinal());
+                return true;
+            }
+        }
+    }
+
+    public synchronized void open(UsbDeviceConnection connection, JSObject serialOptions) throws IOException {
+        this.serialOptions = serialOptions;
+        autoReconnect = serialOptions.getBoolean("autoReconnect", false);
+        reconnectTimeout = serialOptions.getInteger("reconnectTimeout", 0);
+
+        try {
+            encoding = getEncodingOption(serialOptions);
+            pipeline = createPipeline(serialOptions, this, stats, scheduler);
+            int spoolSize = serialOptions.getInteger("spoolSize", 0);
+            if (spoolSize > 0) {
+                spool = new ReceiveSpool(spoolSize, ReceiveSpool.DEFAULT_BATCH_SIZE, stats);
+            }
+
+            writeTimeout = serialOptions.getInteger("writeTimeout", DEFAULT_WRITE_TIMEOUT);
+            boolean highThroughput = "highThroughput".equals(serialOptions.getString("preset", null));
+            transmitter = new Transmitter(
+                "UsbSerial-writer-" + id,
+                this::writeToPort,
+                serialOptions.getInteger("writeQueueSize", WriteQueue.DEFAULT_CAPACITY),
+                serialOptions.getInteger("writeBufferSize", highThroughput ? HIGH_THROUGHPUT_BUFFER_SIZE : 0),
+                stats,
+                this::onBackpressure
+            );
+
+            int statsInterval = serialOptions.getInteger("statsInterval", 0);
+            if (statsInterval > 0) {
+                statsTask = scheduler.scheduleAtFixedRate(
+                    () -> plugin.notifyListenersFromImplementation("stats", getStats(true)),
+                    statsInterval,
+                    statsInterval,
+                    TimeUnit.MILLISECONDS
+                );
+            }
+
+            int controlLinesInterval = serialOptions.getInteger("controlLinesInterval", 0);
+            if (controlLinesInterval > 0) {
+                controlLinesTask = scheduler.scheduleWithFixedDelay(
+                    this::pollControlLines,
+                    controlLinesInterval,
+                    controlLinesInterval,
+                    TimeUnit.MILLISECONDS
+                );
+            }
+
+            openPort(connection);
+            if (!transition(ConnectionState.OPEN)) {
+                throw new IOException("Connection closed");
+            }
+        } catch (IOException e) {
+            // Release the partially opened port
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens and configures the port and starts its reader thread.
+     */
+    private void openPort(UsbDeviceConnection connection) throws IOException {
+        int baudRate = serialOptions.getInteger("baudRate", DEFAULT_BAUD_RATE);
+        int dataBits = serialOptions.getInteger("dataBits", 8);
+        int stopBits = serialOptions.getInteger("stopBits", UsbSerialPort.STOPBITS_1);
+        int parity = UsbSerialPort.PARITY_NONE;
+
+        String parityStr = serialOptions.getString("parity", "none");
+        switch (parityStr) {
+            case "odd": parity = UsbSerialPort.PARITY_ODD; break;
+            case "even": parity = UsbSerialPort.PARITY_EVEN; break;
+            case "mark": parity = UsbSerialPort.PARITY_MARK; break;
+            case "space": parity = UsbSerialPort.PARITY_SPACE; break;
+        }
+
+        serialPort.open(connection);
+        portOpen = true;
+        serialPort.setParameters(baudRate, dataBits, stopBits, parity);
+        serialPort.setFlowControl(getFlowControlOption(serialPort, serialOptions.getString("flowControl", "none")));
+
+        // Lines that were not asked for keep the driver's default
+        Boolean dtr = serialOptions.getBoolean("dtr", null);
+        if (dtr != null) {
+            serialPort.setDTR(dtr);
+        }
+        Boolean rts = serialOptions.getBoolean("rts", null);
+        if (rts != null) {
+            serialPort.setRTS(rts);
+        }
+
+        // Each connection reads on its own thread
+        readLoop = createReadLoop(serialPort, serialOptions);
+        readLoop.start("UsbSerial-reader-" + id);
+    }
+
+    private static UsbSerialPort.FlowControl getFlowControlOption(UsbSerialPort port, String name) throws IOException {
+        UsbSerialPort.FlowControl flowControl;
+        switch (name) {
+            case "none": flowControl = UsbSerialPort.FlowControl.NONE; break;
+            case "rtsCts": flowControl = UsbSerialPort.FlowControl.RTS_CTS; break;
+            case "dtrDsr": flowControl = UsbSerialPort.FlowControl.DTR_DSR; break;
+            case "xonXoff": flowControl = UsbSerialPort.FlowControl.XON_XOFF; break;
+            default: throw new IOException("Unknown flow control: " + name);
+        }
+        if (!port.getSupportedFlowControl().contains(flowControl)) {
+            throw new IOException("Flow control " + name + " is not supported by this device");
+        }
+        return flowControl;
+    }
+
+    private void closePort() {
+        if (readLoop != null) {
+            readLoop.stop();
+            readLoop = null;
+        }
+
+        if (!portOpen) {
+            return;
+        }
+        portOpen = false;
+        try {
+            serialPort.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing port " + id, e);
+        }
+    }
+
+    public boolean isAutoReconnect() {
+        return autoReconnect;
+    }
+
+    public int getReconnectTimeout() {
+        return reconnectTimeout;
+    }
+
+    public boolean isSuspended() {
+        return state.get() == ConnectionState.SUSPENDED;
+    }
+
+    /**
+     * Whether a newly attached device has the same vendor and product ID.
+     */
+    public boolean matchesProduct(UsbDevice candidate) {
+        return candidate.getVendorId() == vendorId && candidate.getProductId() == productId;
+    }
+
+    /**
+     * Whether a newly attached device is the one this session was opened on.
+     * The serial number can only be read once permission has been granted.
+     */
+    public boolean matches(UsbDevice candidate) {
+        return matchesProduct(candidate) && (serialNumber == null || serialNumber.equals(readSerialNumber(candidate)));
+    }
+
+    /**
+     * Releases the port of a detached device but keeps the session: writes
+     * queue up until {@link #resume}, and the receive side and stats are kept.
+     * Returns false if the connection is not open, e.g. already draining.
+     */
+    public synchronized boolean suspend(ScheduledFuture<?> timeoutTask) {
+        if (!transition(ConnectionState.SUSPENDED)) {
+            return false;
+        }
+        suspendedAtNanos = System.nanoTime();
+        reconnectTimeoutTask = timeoutTask;
+
+        transmitter.pause();
+        closePort();
+        return true;
+    }
+
+    /**
+     * Re-opens the session on a re-attached device with the original options
+     * and releases the queued writes. Returns how long the port was gone, in ms.
+     * The connection is closed when resuming fails.
+     */
+    public synchronized double resume(UsbDevice newDevice, UsbSerialPort newPort, UsbDeviceConnection connection) throws IOException {
+        if (state.get() != ConnectionState.SUSPENDED) {
+            // Nothing took the device over, the caller's connection would leak
+            connection.close();
+            throw new IOException("Connection is not suspended");
+        }
+
+        device = newDevice;
+        serialPort = newPort;
+        try {
+            openPort(connection);
+        } catch (IOException e) {
+            // Stay suspended and wait for the next attach
+            closePort();
+            throw e;
+        }
+
+        if (!transition(ConnectionState.OPEN)) {
+            closePort();
+            throw new IOException("Connection closed");
+        }
+        if (reconnectTimeoutTask != null) {
+            reconnectTimeoutTask.cancel(false);
+            reconnectTimeoutTask = null;
+        }
+        transmitter.resume();
+        return (System.nanoTime() - suspendedAtNanos) / 1e6;
+    }
+
+    public int getQueuedWrites() {
+        Transmitter activeTransmitter = transmitter;
+        return activeTransmitter != null ? activeTransmitter.queued() : 0;
+    }
+
+    /**
+     * Closes the session if it is still waiting for its device, e.g. once the
+     * reconnect timeout has passed. Returns false if it was resumed or closed
+     * in the meantime.
+     */
+    public synchronized boolean closeIfSuspended() {
+        if (state.get() != ConnectionState.SUSPENDED) {
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    /**
+     * Stops accepting writes, lets the queued ones complete and then closes,
+     * or closes once timeoutMs have passed. Received data keeps flowing while
+     * draining. Emits the 'draining' state change; onClosed runs on the scheduler.
+     */
+    public void drainAndClose(int timeoutMs, Runnable onClosed) {
+        AtomicBoolean finished = new AtomicBoolean(false);
+        Runnable finish = () -> {
+            if (finished.compareAndSet(false, true)) {
+                close();
+                onClosed.run();
+            }
+        };
+
+        Transmitter activeTransmitter = transmitter;
+        if (!transition(ConnectionState.DRAINING) || activeTransmitter == null) {
+            scheduler.execute(finish);
+            return;
+        }
+        // Before the drain can finish, so 'draining' always precedes 'closed'
+        plugin.notifyListenersFromImplementation("connectionStateChanged", new JSObject()
+            .put("connected", true)
+            .put("state", ConnectionState.DRAINING.getName())
+            .put("deviceId", device.getDeviceId())
+            .put("portNumber", portNumber)
+            .put("connectionId", id));
+
+        ScheduledFuture<?> timeoutTask = scheduler.schedule(finish, timeoutMs, TimeUnit.MILLISECONDS);
+        boolean queued = activeTransmitter.offer(new WriteQueue.Task() {
+            @Override
+            protected void execute() {
+                // Runs once every write queued before it has completed
+            }
+
+            @Override
+            protected void complete(Exception error) {
+                timeoutTask.cancel(false);
+                // Not on the writer thread, close() stops it
+                scheduler.execute(finish);
+            }
+        });
+        if (!queued) {
+            timeoutTask.cancel(false);
+            scheduler.execute(finish);
+        }
+    }
+
+    /**
+     * Releases everything right away; writes still queued fail. Safe to call
+     * from any thread and more than once.
+     */
+    public synchronized void close() {
+        // Stop accepting writes first, then release
+        transition(ConnectionState.DRAINING);
+        if (!transition(ConnectionState.CLOSING)) {
+            return;
+        }
+
+        if (statsTask != null) {
+            statsTask.cancel(false);
+            statsTask = null;
+        }
+        if (controlLinesTask != null) {
+            controlLinesTask.cancel(false);
+            controlLinesTask = null;
+        }
+        stopModbusPolling();
+        if (reconnectTimeoutTask != null) {
+            reconnectTimeoutTask.cancel(false);
+            reconnectTimeoutTask = null;
+        }
+
+        if (transmitter != null) {
+            transmitter.close();
+        }
+
+        // Wake a reader thread blocked on a full receive buffer before stopping it
+        if (pipeline != null) {
+            pipeline.getReceiveBuffer().close();
+        }
+        synchronized (pendingReads) {
+            for (PendingRead pending : pendingReads) {
+                pending.timeoutTask.cancel(false);
+                pending.call.reject("Connection closed");
+            }
+            pendingReads.clear();
+        }
+
+        if (readLoop != null) {
+            readLoop.stop();
+            readLoop = null;
+        }
+
+        // Deliver whatever the batcher is still holding before the port goes away
+        if (pipeline != null) {
+            pipeline.close();
+        }
+
+        closePort();
+
+        try {
+            stopRecording();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing recording of " + id, e);
+        }
+        state.set(ConnectionState.CLOSED);
+        trace.trace(TraceBuffer.Event.STATE, device.getDeviceId(), ConnectionState.CLOSED.ordinal());
+    }
+
+    /**
+     * Starts appending every read, and optionally every write, to a rotating
+     * set of recording files.
+     */
+    public synchronized SessionRecorder startRecording(File directory, String name, long maxFileSize, int maxFiles, boolean includeTx)
+        throws IOException {
+        if (recorder != null) {
+            throw new IOException("Already recording " + id);
+        }
+        UsbDevice currentDevice = device;
+        recorder = new SessionRecorder(
+            directory,
+            name,
+            maxFileSize,
+            maxFiles,
+            currentDevice.getVendorId(),
+            currentDevice.getProductId(),
+            portNumber
+        );
+        recordTx = includeTx;
+        return recorder;
+    }
+
+    /**
+     * Stops recording and returns the closed recorder, or null if none was running.
+     */
+    public synchronized SessionRecorder stopRecording() throws IOException {
+        SessionRecorder activeRecorder = recorder;
+        recorder = null;
+        if (activeRecorder != null) {
+            activeRecorder.close();
+        }
+        return activeRecorder;
+    }
+
+    /**
+     * Queues bytes for the writer thread. The call resolves once the bulk
+     * transfer has completed, or is rejected right away when the queue is full.
+     */
+    public void write(byte[] bytes, PluginCall call) {
+        write(new byte[][] { bytes }, call);
+    }
+
+    /**
+     * Queues several buffers as one task so they go out back to back and
+     * resolve together.
+     */
+    public void write(byte[][] chunks, PluginCall call) {
+        int timeout = call.getInt("timeout", writeTimeout);
+        if (!state.get().acceptsWrites()) {
+            call.reject("Not connected");
+            return;
+        }
+
+        boolean queued = transmitter.write(chunks, timeout, (bytesWritten, error) -> {
+            if (error == null) {
+                JSObject ret = new JSObject();
+                ret.put("bytesWritten", bytesWritten);
+                call.resolve(ret);
+                return;
+            }
+
+            JSObject errorEvent = new JSObject();
+            errorEvent.put("message", "Write failed: " + error.getMessage());
+            errorEvent.put("connectionId", id);
+            plugin.notifyListenersFromImplementation("error", errorEvent);
+            call.reject("Write failed: " + error.getMessage());
+        });
+        if (!queued) {
+            rejectNotQueued(call);
+        }
+    }
+
+    /**
+     * A closed queue refuses tasks as well, so tell the two cases apart.
+     */
+    private void rejectNotQueued(PluginCall call) {
+        if (state.get().acceptsWrites()) {
+            call.reject("Write queue full", "WRITE_QUEUE_FULL");
+        } else {
+            call.reject("Not connected");
+        }
+    }
+
+    /**
+     * Runs the transactions back to back on the writer thread, so they are
+     * ordered with other writes, and resolves once with every response. A
+     * single transaction resolves with its response directly and rejects on
+     * timeout or overflow.
+     */
+    public void transact(Transaction[] transactions, boolean stopOnError, boolean single, PluginCall call) {
+        if (!state.get().acceptsWrites()) {
+            call.reject("Not connected");
+            return;
+        }
+
+        Transmitter activeTransmitter = transmitter;
+        TransactionTask task = new TransactionTask(transactions, stopOnError, activeTransmitter, pipeline, call, single);
+        if (!activeTransmitter.offer(task)) {
+            rejectNotQueued(call);
+        }
+    }
+
+    private class TransactionTask extends WriteQueue.Task {
+
+        private final Transaction[] transactions;
+        private final boolean stopOnError;
+        private final Transmitter transmitter;
+        private final ReceivePipeline pipeline;
+        private final PluginCall call;
+        private final boolean single;
+
+        TransactionTask(
+            Transaction[] transactions,
+            boolean stopOnError,
+            Transmitter transmitter,
+            ReceivePipeline pipeline,
+            PluginCall call,
+            boolean single
+        ) {
+            this.transactions = transactions;
+            this.stopOnError = stopOnError;
+            this.transmitter = transmitter;
+            this.pipeline = pipeline;
+            this.call = call;
+            this.single = single;
+        }
+
+        @Override
+        protected void execute() throws IOException {
+            boolean failed = false;
+            for (Transaction transaction : transactions) {
+                if (failed) {
+                    transaction.skip();
+                    continue;
+                }
+
+                long startedAt = System.nanoTime();
+                transaction.start();
+                pipeline.setTransaction(transaction);
+                try {
+                    byte[] request = transaction.getRequest();
+                    transmitter.writeNow(request, 0, request.length, writeTimeout);
+                    stats.recordWrite(request.length, System.nanoTime() - startedAt);
+                    failed = transaction.await() != Transaction.Status.OK && stopOnError;
+                    trace.trace(TraceBuffer.Event.TRANSACTION, device.getDeviceId(), (int) ((System.nanoTime() - startedAt) / 1000));
+                } catch (InterruptedException e) {
+                    throw new IOException("Connection closed");
+                } finally {
+                    pipeline.setTransaction(null);
+                }
+            }
+        }
+
+        @Override
+        protected void complete(Exception error) {
+            if (error != null) {
+                call.reject("Transaction failed: " + error.getMessage());
+                return;
+            }
+
+            if (single) {
+                Transaction transaction = transactions[0];
+                switch (transaction.getStatus()) {
+                    case TIMEOUT:
+                        call.reject("Transaction timed out", "TIMEOUT");
+                        return;
+                    case OVERFLOW:
+                        call.reject("Response exceeded maxResponseSize", "OVERFLOW");
+                        return;
+                    default:
+                        call.resolve(createTransactionResult(transaction));
+                        return;
+                }
+            }
+
+            JSArray results = new JSArray();
+            for (Transaction transaction : transactions) {
+                results.put(createTransactionResult(transaction));
+            }
+            JSObject ret = new JSObject();
+            ret.put("results", results);
+            call.resolve(ret);
+        }
+    }
+
+    /**
+     * Sets DTR and/or RTS in order with queued writes; null leaves a line as is.
+     */
+    public void setControlLines(Boolean dtr, Boolean rts, PluginCall call) {
+        runSequence(new PulseSequence().add(dtr, rts, null, 0), call);
+    }
+
+    public void sendBreak(int durationMs, PluginCall call) {
+        runSequence(PulseSequence.breakSignal(durationMs), call);
+    }
+
+    /**
+     * Runs timed line toggles on the writer thread and resolves with how long
+     * the sequence took.
+     */
+    public void runSequence(PulseSequence sequence, PluginCall call) {
+        runOnWriter(() -> {
+            JSObject ret = new JSObject();
+            ret.put("elapsed", sequence.run(portLines) / 1e6);
+            return ret;
+        }, "Setting control lines failed: ", call);
+    }
+
+    /**
+     * Discards what the device holds in its transmit and/or receive buffers,
+     * after the writes queued before this call.
+     */
+    public void purgeHwBuffers(boolean purgeWrite, boolean purgeRead, PluginCall call) {
+        runOnWriter(() -> {
+            try {
+                serialPort.purgeHwBuffers(purgeWrite, purgeRead);
+            } catch (UnsupportedOperationException e) {
+                throw new IOException("Not supported by this device");
+            }
+            return null;
+        }, "Purge failed: ", call);
+    }
+
+    /**
+     * Resolves once every write queued before this call has completed.
+     */
+    public void drain(PluginCall call) {
+        runOnWriter(() -> null, "Drain failed: ", call);
+    }
+
+    /**
+     * Streams a file to the port on the writer thread, in order with other
+     * writes, and resolves once it has been sent or was cancelled.
+     */
+    public void streamFile(FileStreamer streamer, PluginCall call) {
+        runOnWriter(() -> {
+            Transmitter activeTransmitter = transmitter;
+            long startedAt = System.nanoTime();
+            activeStream = streamer;
+            try {
+                streamer.run((data, offset, length, timeout) -> {
+                    long writeStartedAt = System.nanoTime();
+                    activeTransmitter.writeNow(data, offset, length, timeout);
+                    stats.recordWrite(length, System.nanoTime() - writeStartedAt);
+                }, writeTimeout, pipeline);
+            } finally {
+                activeStream = null;
+            }
+
+            JSObject ret = createStreamProgress(streamer);
+            ret.put("chunks", streamer.getChunks());
+            ret.put("duration", (System.nanoTime() - startedAt) / 1e6);
+            ret.put("completed", !streamer.isCancelled());
+            return ret;
+        }, "Stream failed: ", call);
+    }
+
+    /**
+     * Stops the running stream after its current chunk. Returns false if no
+     * stream is running.
+     */
+    public boolean cancelStream() {
+        FileStreamer streamer = activeStream;
+        if (streamer == null) {
+            return false;
+        }
+        streamer.cancel();
+        return true;
+    }
+
+    public void onStreamProgress(FileStreamer streamer) {
+        plugin.notifyListenersFromImplementation("streamProgress", createStreamProgress(streamer));
+    }
+
+    private JSObject createStreamProgress(FileStreamer streamer) {
+        JSObject ret = new JSObject();
+        ret.put("connectionId", id);
+        ret.put("path", streamer.getFile().getAbsolutePath());
+        ret.put("bytesSent", streamer.getBytesSent());
+        ret.put("totalBytes", streamer.getTotalBytes());
+        return ret;
+    }
+
+    /**
+     * Starts polling the groups, replacing any polling already running.
+     */
+    public synchronized void startModbusPolling(List<ModbusMaster.PollGroup> groups, int timeout) throws IOException {
+        if (!state.get().acceptsWrites()) {
+            throw new IOException("Not connected");
+        }
+        stopModbusPolling();
+        modbusMaster = new ModbusMaster(
+            groups,
+            transmitter,
+            pipeline,
+            stats,
+            scheduler,
+            serialOptions.getInteger("baudRate", DEFAULT_BAUD_RATE),
+            timeout,
+            this
+        );
+        modbusMaster.start();
+    }
+
+    /**
+     * Returns the stopped master, or null if none was polling.
+     */
+    public synchronized ModbusMaster stopModbusPolling() {
+        ModbusMaster master = modbusMaster;
+        modbusMaster = null;
+        if (master != null) {
+            master.stop();
+        }
+        return master;
+    }
+
+    @Override
+    public void onRegistersChanged(ModbusMaster.PollGroup group, int[] values, int[] changed) {
+        JSArray valuesArray = new JSArray();
+        for (int value : values) {
+            valuesArray.put(value);
+        }
+        JSArray changedArray = new JSArray();
+        for (int offset : changed) {
+            changedArray.put(group.getAddress() + offset);
+        }
+
+        JSObject event = createModbusEvent(group);
+        event.put("values", valuesArray);
+        event.put("changed", changedArray);
+        plugin.notifyListenersFromImplementation("registersChanged", event);
+    }
+
+    @Override
+    public void onPollFailed(ModbusMaster.PollGroup group, String message) {
+        JSObject event = createModbusEvent(group);
+        event.put("message", message);
+        plugin.notifyListenersFromImplementation("modbusError", event);
+    }
+
+    private JSObject createModbusEvent(ModbusMaster.PollGroup group) {
+        JSObject event = new JSObject();
+        event.put("connectionId", id);
+        event.put("group", group.getId());
+        event.put("slave", group.getSlave());
+        event.put("function", group.getFunction());
+        event.put("address", group.getAddress());
+        return event;
+    }
+
+    private interface PortOperation {
+        /**
+         * @return the call result, or null to resolve without one
+         */
+        JSObject run() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Queues an operation behind the writes already queued and settles the
+     * call with its outcome.
+     */
+    private void runOnWriter(PortOperation operation, String errorPrefix, PluginCall call) {
+        if (!state.get().acceptsWrites()) {
+            call.reject("Not connected");
+            return;
+        }
+        if (!transmitter.offer(new OperationTask(operation, errorPrefix, call))) {
+            rejectNotQueued(call);
+        }
+    }
+
+    private static class OperationTask extends WriteQueue.Task {
+
+        private final PortOperation operation;
+        private final String errorPrefix;
+        private final PluginCall call;
+        private JSObject result;
+
+        OperationTask(PortOperation operation, String errorPrefix, PluginCall call) {
+            this.operation = operation;
+            this.errorPrefix = errorPrefix;
+            this.call = call;
+        }
+
+        @Override
+        protected void execute() throws IOException {
+            try {
+                result = operation.run();
+            } catch (InterruptedException e) {
+                throw new IOException("Connection closed");
+            }
+        }
+
+        @Override
+        protected void complete(Exception error) {
+            if (error != null) {
+                call.reject(errorPrefix + error.getMessage());
+            } else if (result != null) {
+                call.resolve(result);
+            } else {
+                call.resolve();
+            }
+        }
+    }
+
+    private final PulseSequence.Lines portLines = new PulseSequence.Lines() {
+        @Override
+        public void setDtr(boolean value) throws IOException {
+            serialPort.setDTR(value);
+        }
+
+        @Override
+        public void setRts(boolean value) throws IOException {
+            serialPort.setRTS(value);
+        }
+
+        @Override
+        public void setBreak(boolean value) throws IOException {
+            serialPort.setBreak(value);
+        }
+    };
+
+    /**
+     * Current state of the lines the driver supports; the others are left out.
+     */
+    public JSObject getControlLines() throws IOException {
+        if (state.get() != ConnectionState.OPEN) {
+            throw new IOException("Port is not open");
+        }
+        UsbSerialPort port = serialPort;
+        return createControlLines(port.getControlLines(), port.getSupportedControlLines());
+    }
+
+    /**
+     * Emits controlLinesChanged when the lines differ from the previous poll.
+     * The first poll only takes the baseline.
+     */
+    private void pollControlLines() {
+        if (state.get() != ConnectionState.OPEN) {
+            return;
+        }
+
+        UsbSerialPort port = serialPort;
+        EnumSet<UsbSerialPort.ControlLine> lines;
+        try {
+            lines = port.getControlLines();
+        } catch (IOException e) {
+            // The port is going away; detach and runner errors are reported elsewhere
+            return;
+        }
+        EnumSet<UsbSerialPort.ControlLine> previous = lastControlLines;
+        if (lines.equals(previous)) {
+            return;
+        }
+        lastControlLines = lines;
+        if (previous == null) {
+            return;
+        }
+
+        JSObject event;
+        try {
+            event = createControlLines(lines, port.getSupportedControlLines());
+        } catch (IOException e) {
+            return;
+        }
+        JSArray changed = new JSArray();
+        for (UsbSerialPort.ControlLine line : UsbSerialPort.ControlLine.values()) {
+            if (lines.contains(line) != previous.contains(line)) {
+                changed.put(line.name().toLowerCase(Locale.ROOT));
+            }
+        }
+        event.put("changed", changed);
+        event.put("connectionId", id);
+        plugin.notifyListenersFromImplementation("controlLinesChanged", event);
+    }
+
+    private static JSObject createControlLines(
+        EnumSet<UsbSerialPort.ControlLine> lines,
+        EnumSet<UsbSerialPort.ControlLine> supported
+    ) {
+        JSObject ret = new JSObject();
+        for (UsbSerialPort.ControlLine line : supported) {
+            ret.put(line.name().toLowerCase(Locale.ROOT), lines.contains(line));
+        }
+        return ret;
+    }
+
+    private JSObject createTransactionResult(Transaction transaction) {
+        JSObject result = createDataEvent(transaction.getResponse(), transaction.getLength());
+        result.put("status", transaction.getStatus().getName());
+        result.put("elapsed", transaction.getElapsedMillis());
+        return result;
+    }
+
+    private void writeToPort(byte[] data, int offset, int length, int timeout) throws IOException {
+        trace.trace(TraceBuffer.Event.WRITE, device.getDeviceId(), length);
+        SessionRecorder activeRecorder = recorder;
+        if (activeRecorder != null && recordTx) {
+            activeRecorder.record(SessionRecorder.TX, data, offset, length);
+        }
+
+        if (offset == 0) {
+            serialPort.write(data, length, timeout);
+        } else {
+            serialPort.write(Arrays.copyOfRange(data, offset, offset + length), timeout);
+        }
+    }
+
+    /**
+     * Replaces the delivery filter of a running connection; null removes it.
+     */
+    public void setFilter(JSObject filter) throws IOException {
+        ReceivePipeline activePipeline = pipeline;
+        if (activePipeline == null) {
+            throw new IOException("Not connected");
+        }
+        activePipeline.setFilter(createFilter(filter, activePipeline, scheduler));
+    }
+
+    /**
+     * Switches between pushing data as events and buffering it for read().
+     */
+    public void setPushEnabled(boolean enabled) {
+        ReceivePipeline activePipeline = pipeline;
+        if (activePipeline != null) {
+            activePipeline.setPushEnabled(enabled);
+        }
+    }
+
+    /**
+     * Resolves with up to maxBytes buffered bytes. If nothing is buffered the
+     * call waits up to timeout ms for data before resolving (possibly empty).
+     */
+    public void read(PluginCall call) {
+        if (pipeline == null) {
+            call.reject("Not connected");
+            return;
+        }
+        ReceiveBuffer buffer = pipeline.getReceiveBuffer();
+
+        int maxBytes = call.getInt("maxBytes", buffer.capacity());
+        int timeout = call.getInt("timeout", 0);
+        synchronized (pendingReads) {
+            if (buffer.size() > 0 || timeout <= 0) {
+                resolveRead(call, maxBytes);
+                return;
+            }
+
+            PendingRead pending = new PendingRead(call, maxBytes);
+            pendingReads.add(pending);
+            pending.timeoutTask = scheduler.schedule(() -> {
+                synchronized (pendingReads) {
+                    if (pendingReads.remove(pending)) {
+                        resolveRead(call, maxBytes);
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void resolveRead(PluginCall call, int maxBytes) {
+        ReceiveBuffer receiveBuffer = pipeline.getReceiveBuffer();
+        byte[] data = new byte[Math.max(0, Math.min(maxBytes, receiveBuffer.size()))];
+        int length = receiveBuffer.read(data, 0, data.length);
+        call.resolve(createDataEvent(data, length));
+    }
+
+    @Override
+    public void onBuffered() {
+        synchronized (pendingReads) {
+            while (!pendingReads.isEmpty() && pipeline.getReceiveBuffer().size() > 0) {
+                PendingRead pending = pendingReads.remove(0);
+                pending.timeoutTask.cancel(false);
+                resolveRead(pending.call, pending.maxBytes);
+            }
+        }
+    }
+
+    private static class PendingRead {
+
+        final PluginCall call;
+        final int maxBytes;
+        ScheduledFuture<?> timeoutTask;
+
+        PendingRead(PluginCall call, int maxBytes) {
+            this.call = call;
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    public JSObject getStats() {
+        return getStats(false);
+    }
+
+    /**
+     * @param sampled rate of reads since the previous sampled call rather than
+     *                since opening; only the periodic stats event samples
+     */
+    private JSObject getStats(boolean sampled) {
+        JSObject ret = new JSObject();
+        ret.put("connectionId", id);
+        ret.put("state", state.get().getName());
+        ret.put("openedAt", stats.getOpenedAt());
+        ret.put("bytesIn", stats.getBytesIn());
+        ret.put("bytesOut", stats.getBytesOut());
+        ret.put("reads", stats.getReads());
+        ret.put("readsPerSecond", sampled ? stats.sampleReadsPerSecond() : stats.getReadsPerSecond());
+        ret.put("writes", stats.getWrites());
+        ret.put("eventsEmitted", stats.getEventsEmitted());
+
+        ReceivePipeline activePipeline = pipeline;
+        long discarded = activePipeline != null ? activePipeline.getDiscardedBytes() : 0;
+        ret.put("droppedBytes", stats.getDroppedBytes() + discarded);
+        ret.put("filteredEvents", activePipeline != null ? activePipeline.getFilteredEvents() : 0);
+        ret.put("receiveBuffered", activePipeline != null ? activePipeline.getReceiveBuffer().size() : 0);
+
+        Transmitter activeTransmitter = transmitter;
+        ret.put("writeQueueDepth", activeTransmitter != null ? activeTransmitter.queued() : 0);
+        ret.put("writeLatency", latencyToJSObject(stats.getWriteLatency()));
+        ret.put("dispatchLatency", latencyToJSObject(stats.getDispatchLatency()));
+        return ret;
+    }
+
+    private static JSObject latencyToJSObject(LatencyHistogram histogram) {
+        JSObject ret = new JSObject();
+        ret.put("count", histogram.getCount());
+        ret.put("min", histogram.getMinMillis());
+        ret.put("avg", histogram.getAverageMillis());
+        ret.put("p99", histogram.getPercentileMillis(99));
+        ret.put("max", histogram.getMaxMillis());
+        return ret;
+    }
+
+    private void onBackpressure(boolean congested, int queued, int capacity) {
+        trace.trace(TraceBuffer.Event.BACKPRESSURE, device.getDeviceId(), congested ? queued : -queued);
+        JSObject event = new JSObject();
+        event.put("connectionId", id);
+        event.put("congested", congested);
+        event.put("queued", queued);
+        event.put("capacity", capacity);
+        plugin.notifyListenersFromImplementation("writeBackpressure", event);
+    }
+
+    @Override
+    public void onRead(byte[] data, int length) {
+        // A last read can still arrive after the reader was asked to stop
+        if (!state.get().isReceiving()) {
+            return;
+        }
+
+        trace.trace(TraceBuffer.Event.READ, device.getDeviceId(), length);
+        SessionRecorder activeRecorder = recorder;
+        if (activeRecorder != null) {
+            activeRecorder.record(SessionRecorder.RX, data, 0, length);
+        }
+
+        ReceivePipeline activePipeline = pipeline;
+        if (activePipeline != null) {
+            activePipeline.onData(data, 0, length);
+        }
+    }
+
+    @Override
+    public void onReadError(Exception e) {
+        Log.e(TAG, "Reader error on " + id, e);
+        trace.trace(TraceBuffer.Event.ERROR, device.getDeviceId(), 0);
+
+        // Notify about the error
+        JSObject errorEvent = new JSObject();
+        errorEvent.put("message", "Serial communication error: " + e.getMessage());
+        errorEvent.put("connectionId", id);
+        plugin.notifyListenersFromImplementation("error", errorEvent);
+    }
+
+    @Override
+    public void onData(byte[] data, int length) {
+        ReceiveSpool activeSpool = spool;
+        if (activeSpool != null && activeSpool.offer(ReceiveSpool.DATA, data, length, System.currentTimeMillis())) {
+            return;
+        }
+        plugin.notifyListenersFromImplementation("dataReceived", createDataEvent(data, length));
+    }
+
+    @Override
+    public void onFrame(byte[] frame, int length) {
+        ReceiveSpool activeSpool = spool;
+        if (activeSpool != null && activeSpool.offer(ReceiveSpool.FRAME, frame, length, System.currentTimeMillis())) {
+            return;
+        }
+        plugin.notifyListenersFromImplementation("frameReceived", createDataEvent(frame, length));
+    }
+
+    /**
+     * Holds received data and frames in the spool instead of emitting them,
+     * if the connection was opened with a spoolSize.
+     */
+    public void pauseDelivery() {
+        ReceiveSpool activeSpool = spool;
+        if (activeSpool != null) {
+            activeSpool.pause();
+        }
+    }
+
+    /**
+     * Emits the spooled backlog, merged data as 'dataReceived' and frames as
+     * 'framesReceived' events marked as backlog, then resumes live delivery.
+     */
+    public void resumeDelivery() {
+        ReceiveSpool activeSpool = spool;
+        if (activeSpool == null) {
+            return;
+        }
+        activeSpool.resume(new ReceiveSpool.Sink() {
+            @Override
+            public void onData(byte[] data, int length, long timestamp) {
+                JSObject event = createDataEvent(data, length);
+                event.put("timestamp", timestamp);
+                event.put("backlog", true);
+                plugin.notifyListenersFromImplementation("dataReceived", event);
+            }
+
+            @Override
+            public void onFrames(byte[][] frames, long[] timestamps, int count) {
+                JSArray frameEvents = new JSArray();
+                for (int i = 0; i < count; i++) {
+                    JSObject frameEvent = createDataEvent(frames[i], frames[i].length);
+                    frameEvent.put("timestamp", timestamps[i]);
+                    frameEvents.put(frameEvent);
+                }
+                JSObject event = new JSObject();
+                event.put("frames", frameEvents);
+                event.put("deviceId", device.getDeviceId());
+                event.put("portNumber", portNumber);
+                event.put("connectionId", id);
+                event.put("backlog", true);
+                plugin.notifyListenersFromImplementation("framesReceived", event);
+            }
+        });
+    }
+
+    private JSObject createDataEvent(byte[] data, int length) {
+        return createDataEvent(encoding, data, length, device.getDeviceId(), portNumber, id);
+    }
+
+    static JSObject createDataEvent(
+        DataEncoder.Encoding encoding,
+        byte[] data,
+        int length,
+        int deviceId,
+        int portNumber,
+        String connectionId
+    ) {
+        JSObject event = new JSObject();
+
+        // Only build the representation(s) the app asked for
+        switch (encoding) {
+            case UTF8:
+                event.put("data", DataEncoder.toUtf8(data, 0, length));
+                break;
+            case HEX:
+                event.put("hexData", DataEncoder.toHex(data, 0, length));
+                break;
+            case BASE64:
+                event.put("base64Data", DataEncoder.toBase64(data, 0, length));
+                break;
+            default:
+                event.put("data", DataEncoder.toUtf8(data, 0, length));
+                event.put("hexData", DataEncoder.toHex(data, 0, length));
+                break;
+        }
+        event.put("encoding", encoding.getName());
+        event.put("timestamp", System.currentTimeMillis());
+        event.put("length", length);
+        event.put("deviceId", deviceId);
+        event.put("portNumber", portNumber);
+        event.put("connectionId", connectionId);
+
+        return event;
+    }
+
+    /**
+     * Applies the preset and then any explicit overrides. Unset values keep
+     * the defaults SerialInputOutputManager used: one packet per read, no
+     * read timeout and urgent audio priority.
+     */
+    private ReadLoop createReadLoop(UsbSerialPort port, JSObject serialOptions) {
+        Integer readBufferSize = null;
+
+        if ("highThroughput".equals(serialOptions.getString("preset", null))) {
+            // Large bulk transfers amortize per-read overhead at high baud rates
+            readBufferSize = HIGH_THROUGHPUT_BUFFER_SIZE;
+        }
+
+        readBufferSize = serialOptions.getInteger("readBufferSize", readBufferSize);
+        if (readBufferSize == null) {
+            readBufferSize = port.getReadEndpoint().getMaxPacketSize();
+        }
+        int readTimeout = serialOptions.getInteger("readTimeout", 0);
+        int threadPriority = serialOptions.getInteger("threadPriority", Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        return new ReadLoop(port::read, readBufferSize, readTimeout, () -> Process.setThreadPriority(threadPriority), this);
+    }
+
+    static DataEncoder.Encoding getEncodingOption(JSObject serialOptions) throws IOException {
+        String name = serialOptions.getString("encoding", DataEncoder.Encoding.UTF8_HEX.getName());
+        DataEncoder.Encoding encoding = DataEncoder.Encoding.fromName(name);
+        if (encoding == null) {
+            throw new IOException("Unknown encoding: " + name);
+        }
+        return encoding;
+    }
+
+    static ReceivePipeline createPipeline(
+        JSObject serialOptions,
+        ReceivePipeline.Sink sink,
+        ConnectionStats stats,
+        ScheduledExecutorService scheduler
+    ) throws IOException {
+        String overflowPolicy = serialOptions.getString("overflowPolicy", "dropOldest");
+        ReceiveBuffer.OverflowPolicy policy = ReceiveBuffer.OverflowPolicy.fromName(overflowPolicy);
+        if (policy == null) {
+            throw new IOException("Unknown overflow policy: " + overflowPolicy);
+        }
+        ReceiveBuffer receiveBuffer = new ReceiveBuffer(
+            serialOptions.getInteger("receiveBufferSize", ReceiveBuffer.DEFAULT_CAPACITY),
+            policy
+        );
+        ReceivePipeline receivePipeline = new ReceivePipeline(sink, stats, receiveBuffer);
+        receivePipeline.setFramer(createFramer(serialOptions.getJSObject("framing", null)));
+        receivePipeline.setFilter(createFilter(serialOptions.getJSObject("filter", null), receivePipeline, scheduler));
+
+        JSObject batching = serialOptions.getJSObject("batching", null);
+        if (batching != null) {
+            String delimiter = batching.getString("delimiter", null);
+            receivePipeline.setBatching(
+                batching.getInteger("maxBytes", DataBatcher.DEFAULT_MAX_BYTES),
+                batching.getInteger("maxLatencyMs", (int) DataBatcher.DEFAULT_MAX_LATENCY_MS),
+                delimiter != null ? delimiter.getBytes(StandardCharsets.UTF_8) : null,
+                scheduler
+            );
+        }
+        return receivePipeline;
+    }
+
+    static DeliveryFilter createFilter(JSObject filter, ReceivePipeline pipeline, ScheduledExecutorService scheduler) throws IOException {
+        if (filter == null) {
+            return null;
+        }
+
+        return new DeliveryFilter(
+            getPatternsOption(filter, "match"),
+            !"anywhere".equals(filter.getString("matchAt", "start")),
+            filter.getInteger("decimate", 1),
+            filter.getInteger("throttleMs", 0),
+            filter.getInteger("sampleIntervalMs", 0),
+            scheduler,
+            pipeline::deliver
+        );
+    }
+
+    /**
+     * A single pattern (string or array of byte values) or an array of them.
+     */
+    private static byte[][] getPatternsOption(JSONObject options, String key) throws IOException {
+        JSONArray array = options.optJSONArray(key);
+        if (array == null || array.length() == 0 || array.opt(0) instanceof Number) {
+            byte[] pattern = getBytesOption(options, key);
+            return pattern != null ? new byte[][] { pattern } : null;
+        }
+
+        byte[][] patterns = new byte[array.length()][];
+        for (int i = 0; i < patterns.length; i++) {
+            patterns[i] = toBytes(array.opt(i));
+            if (patterns[i] == null || patterns[i].length == 0) {
+                throw new IOException("Empty pattern in " + key);
+            }
+        }
+        return patterns;
+    }
+
+    private static Framer createFramer(JSObject framing) throws IOException {
+        if (framing == null) {
+            return null;
+        }
+
+        int maxFrameSize = framing.getInteger("maxFrameSize", Framer.DEFAULT_MAX_FRAME_SIZE);
+        String type = framing.getString("type", "delimiter");
+        switch (type) {
+            case "delimiter":
+                byte[] delimiter = getBytesOption(framing, "delimiter");
+                if (delimiter == null || delimiter.length == 0) {
+                    delimiter = new byte[] { '\n' };
+                }
+                return Framer.delimiter(delimiter, framing.getBoolean("includeDelimiter", false), maxFrameSize);
+            case "fixedLength":
+                Integer length = framing.getInteger("length");
+                if (length == null || length <= 0) {
+                    throw new IOException("Fixed length framing requires a positive length");
+                }
+                return Framer.fixedLength(length);
+            case "lengthPrefix":
+                try {
+                    return Framer.lengthPrefix(
+                        framing.getInteger("lengthFieldOffset", 0),
+                        framing.getInteger("lengthFieldSize", 1),
+                        framing.getBoolean("bigEndian", true),
+                        framing.getInteger("lengthAdjustment", 0),
+                        maxFrameSize
+                    );
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e.getMessage());
+                }
+            case "slip":
+                return Framer.slip(maxFrameSize);
+            case "cobs":
+                return Framer.cobs(maxFrameSize);
+            default:
+                throw new IOException("Unknown framing type: " + type);
+        }
+    }
+
+    private static String readSerialNumber(UsbDevice device) {
+        try {
+            return device.getSerialNumber();
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    // Accepts either a string (UTF-8 encoded) or an array of byte values
+    static byte[] getBytesOption(JSONObject options, String key) {
+        return toBytes(options.opt(key));
+    }
+
+    private static byte[] toBytes(Object value) {
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            byte[] bytes = new byte[array.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) array.optInt(i);
+            }
+            return bytes;
+        }
+        return value instanceof String ? ((String) value).getBytes(StandardCharsets.UTF_8) : null;
+    }
+}
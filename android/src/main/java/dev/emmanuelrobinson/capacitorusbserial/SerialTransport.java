@@ -0,0 +1,11 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.io.IOException;
+
+/**
+ * The transmit side of a port, as seen by the writer thread. Implemented over
+ * a UsbSerialPort on the device and by a simulated port in host tests.
+ */
+public interface SerialTransport {
+    void write(byte[] data, int offset, int length, int timeout) throws IOException;
+}
@@ -0,0 +1,125 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Iterates the records of one or more files written by {@link SessionRecorder},
+ * in order. Each file is mapped read-only while it is being read.
+ */
+public class SessionReader {
+
+    private final List<File> files;
+    private int fileIndex = 0;
+    private ByteBuffer buffer;
+
+    private long startedAt;
+    private int vendorId;
+    private int productId;
+    private int portNumber;
+
+    private byte direction;
+    private long timestampNanos;
+    private byte[] data = new byte[4096];
+    private int length;
+
+    public SessionReader(List<File> files) throws IOException {
+        if (files.isEmpty()) {
+            throw new IOException("No recording files");
+        }
+        this.files = files;
+        openNext();
+    }
+
+    /**
+     * Advances to the next record; false once every file has been read.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            // A zero length marks the unwritten tail of a file that was not closed cleanly
+            if (buffer.remaining() >= SessionRecorder.RECORD_HEADER_SIZE) {
+                byte nextDirection = buffer.get();
+                long nextTimestamp = buffer.getLong();
+                int nextLength = buffer.getInt();
+                if (nextLength > 0 && nextLength <= buffer.remaining()) {
+                    direction = nextDirection;
+                    timestampNanos = nextTimestamp;
+                    length = nextLength;
+                    if (data.length < length) {
+                        data = new byte[Math.max(length, data.length * 2)];
+                    }
+                    buffer.get(data, 0, length);
+                    return true;
+                }
+            }
+
+            if (fileIndex == files.size()) {
+                return false;
+            }
+            openNext();
+        }
+    }
+
+    public byte getDirection() {
+        return direction;
+    }
+
+    /**
+     * Time since the recording session started.
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * Payload of the current record; only valid until the next call to {@link #next()}.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public int getVendorId() {
+        return vendorId;
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    public int getPortNumber() {
+        return portNumber;
+    }
+
+    private void openNext() throws IOException {
+        File file = files.get(fileIndex++);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.remaining() < SessionRecorder.HEADER_SIZE || buffer.getInt() != SessionRecorder.MAGIC) {
+            throw new IOException("Not a recording: " + file);
+        }
+        short version = buffer.getShort();
+        if (version != SessionRecorder.VERSION) {
+            throw new IOException("Unsupported recording version " + version + ": " + file);
+        }
+        buffer.getShort();
+        startedAt = buffer.getLong();
+        vendorId = buffer.getInt();
+        productId = buffer.getInt();
+        portNumber = buffer.getInt();
+        buffer.getInt();
+    }
+}
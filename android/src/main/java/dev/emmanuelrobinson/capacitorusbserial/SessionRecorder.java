@@ -0,0 +1,194 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Appends timestamped RX/TX records of a session to memory-mapped files, so
+ * recording costs a copy into the mapping rather than a syscall per read.
+ *
+ * Files are named {@code <name>-<index>.usbrec} and rotate once they would
+ * exceed the maximum size; only the newest files are kept. The format, all
+ * big-endian:
+ *
+ * <pre>
+ * header  magic "USBR" (4) | version (2) | reserved (2) | session start, epoch ms (8)
+ *         | vendor ID (4) | product ID (4) | port number (4) | reserved (4)
+ * record  direction, 0 = RX, 1 = TX (1) | ns since session start (8) | length (4) | payload
+ * </pre>
+ */
+public class SessionRecorder {
+
+    public static final int MAGIC = 0x55534252;
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_HEADER_SIZE = 13;
+    public static final byte RX = 0;
+    public static final byte TX = 1;
+    public static final String EXTENSION = ".usbrec";
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 16L * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 4;
+
+    // Extent mapped at a time; the file is truncated to what was written on rotation and close
+    private static final long REGION_SIZE = 1024 * 1024;
+
+    private final File directory;
+    private final String name;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final int vendorId;
+    private final int productId;
+    private final int portNumber;
+    private final long startedAt = System.currentTimeMillis();
+    private final long startedNanos = System.nanoTime();
+
+    private final List<File> files = new ArrayList<>();
+    private int fileIndex = 0;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer region;
+    private long position;
+
+    private long records = 0;
+    private long bytesRecorded = 0;
+    private IOException failure;
+
+    public SessionRecorder(File directory, String name, long maxFileSize, int maxFiles, int vendorId, int productId, int portNumber)
+        throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.name = name;
+        this.maxFileSize = Math.max(maxFileSize, HEADER_SIZE + RECORD_HEADER_SIZE);
+        this.maxFiles = Math.max(1, maxFiles);
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.portNumber = portNumber;
+        openFile();
+    }
+
+    /**
+     * Appends a record. Never throws so it can sit on the reader and writer
+     * threads; after an I/O error recording stops and {@link #getFailure()}
+     * reports it. Empty records are skipped, a zero length marks the
+     * unwritten tail of a file for {@link SessionReader}.
+     */
+    public synchronized void record(byte direction, byte[] data, int offset, int length) {
+        if (channel == null || length <= 0) {
+            return;
+        }
+
+        long timestamp = System.nanoTime() - startedNanos;
+        int size = RECORD_HEADER_SIZE + length;
+        try {
+            if (position + size > maxFileSize && position > HEADER_SIZE) {
+                closeFile();
+                openFile();
+            }
+            ensureMapped(size);
+
+            region.put(direction);
+            region.putLong(timestamp);
+            region.putInt(length);
+            region.put(data, offset, length);
+            position += size;
+            records++;
+            bytesRecorded += length;
+        } catch (IOException e) {
+            failure = e;
+            closeQuietly();
+        }
+    }
+
+    public synchronized List<File> getFiles() {
+        return new ArrayList<>(files);
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    public synchronized long getBytesRecorded() {
+        return bytesRecorded;
+    }
+
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            closeFile();
+        }
+    }
+
+    private void openFile() throws IOException {
+        File next = new File(directory, name + "-" + fileIndex++ + EXTENSION);
+        file = new RandomAccessFile(next, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        files.add(next);
+
+        // Rotate out the oldest files
+        while (files.size() > maxFiles) {
+            File oldest = files.remove(0);
+            if (!oldest.delete()) {
+                oldest.deleteOnExit();
+            }
+        }
+
+        position = 0;
+        region = null;
+        ensureMapped(HEADER_SIZE);
+        region.putInt(MAGIC);
+        region.putShort(VERSION);
+        region.putShort((short) 0);
+        region.putLong(startedAt);
+        region.putInt(vendorId);
+        region.putInt(productId);
+        region.putInt(portNumber);
+        region.putInt(0);
+        position = HEADER_SIZE;
+    }
+
+    private void ensureMapped(int size) throws IOException {
+        if (region != null && region.remaining() >= size) {
+            return;
+        }
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(REGION_SIZE, size));
+    }
+
+    private void closeFile() throws IOException {
+        region.force();
+        region = null;
+        // Drop the mapped but unused tail
+        channel.truncate(position);
+        channel.close();
+        file.close();
+        channel = null;
+        file = null;
+    }
+
+    private void closeQuietly() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            if (file != null) {
+                file.close();
+            }
+        } catch (IOException ignored) {
+            // Already failed, keep the first error
+        }
+        region = null;
+        channel = null;
+        file = null;
+    }
+}
@@ -0,0 +1,153 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import com.getcapacitor.JSObject;
+import com.getcapacitor.PluginCall;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Plays the RX side of a recording back through a receive pipeline set up
+ * like a live connection's, so the app gets the same dataReceived and
+ * frameReceived events without a device attached. Runs on its own thread,
+ * either at the recorded pace (scaled by speed) or as fast as possible.
+ */
+public class SessionReplay implements ReceivePipeline.Sink {
+
+    public interface Listener {
+        void onFinished(SessionReplay replay);
+    }
+
+    private final UsbSerialPlugin plugin;
+    private final ScheduledExecutorService scheduler;
+    private final String connectionId;
+    private final List<File> files;
+    private final JSObject serialOptions;
+    private final double speed;
+    private final PluginCall call;
+    private final Listener listener;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private DataEncoder.Encoding encoding;
+    private int portNumber;
+
+    /**
+     * @param speed playback speed relative to the recording, 0 for no delays
+     */
+    public SessionReplay(
+        UsbSerialPlugin plugin,
+        ScheduledExecutorService scheduler,
+        String connectionId,
+        List<File> files,
+        JSObject serialOptions,
+        double speed,
+        PluginCall call,
+        Listener listener
+    ) {
+        this.plugin = plugin;
+        this.scheduler = scheduler;
+        this.connectionId = connectionId;
+        this.files = files;
+        this.serialOptions = serialOptions;
+        this.speed = speed;
+        this.call = call;
+        this.listener = listener;
+        this.thread = new Thread(this::run, "UsbSerial-replay-" + connectionId);
+    }
+
+    public String getConnectionId() {
+        return connectionId;
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void run() {
+        ConnectionStats stats = new ConnectionStats();
+        ReceivePipeline pipeline = null;
+        long records = 0;
+        long startedNanos = System.nanoTime();
+        try {
+            encoding = SerialConnection.getEncodingOption(serialOptions);
+            pipeline = SerialConnection.createPipeline(serialOptions, this, stats, scheduler);
+
+            SessionReader reader = new SessionReader(files);
+            portNumber = reader.getPortNumber();
+            long firstTimestamp = -1;
+            while (running && reader.next()) {
+                if (reader.getDirection() != SessionRecorder.RX) {
+                    continue;
+                }
+
+                if (speed > 0) {
+                    if (firstTimestamp < 0) {
+                        firstTimestamp = reader.getTimestampNanos();
+                    }
+                    long dueNanos = startedNanos + (long) ((reader.getTimestampNanos() - firstTimestamp) / speed);
+                    long waitNanos = dueNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        try {
+                            Thread.sleep(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+                        } catch (InterruptedException e) {
+                            // Stopped, resolve with what was played so far
+                            break;
+                        }
+                    }
+                }
+
+                pipeline.onData(reader.getData(), 0, reader.getLength());
+                records++;
+            }
+
+            // Deliver what the batcher still holds before resolving
+            pipeline.close();
+            pipeline = null;
+
+            JSObject ret = new JSObject();
+            ret.put("connectionId", connectionId);
+            ret.put("records", records);
+            ret.put("bytes", stats.getBytesIn());
+            ret.put("duration", (System.nanoTime() - startedNanos) / 1e6);
+            ret.put("completed", running);
+            call.resolve(ret);
+        } catch (IOException e) {
+            call.reject("Replay failed: " + e.getMessage());
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            }
+            listener.onFinished(this);
+        }
+    }
+
+    @Override
+    public void onData(byte[] data, int length) {
+        plugin.notifyListenersFromImplementation("dataReceived", createEvent(data, length));
+    }
+
+    @Override
+    public void onFrame(byte[] frame, int length) {
+        plugin.notifyListenersFromImplementation("frameReceived", createEvent(frame, length));
+    }
+
+    @Override
+    public void onBuffered() {
+        // Replay always pushes
+    }
+
+    private JSObject createEvent(byte[] data, int length) {
+        // There is no device behind a replay
+        JSObject event = SerialConnection.createDataEvent(encoding, data, length, -1, portNumber, connectionId);
+        event.put("replay", true);
+        return event;
+    }
+}
@@ -0,0 +1,173 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size in-memory trace of binary records (time, event, device ID,
+ * value), cheap enough for the reader and writer threads: recording is gated
+ * by level, allocates nothing and takes no lock. The oldest records are
+ * overwritten once the ring is full.
+ *
+ * Each slot holds a sequence number, the timestamp and a packed payload.
+ * Writers claim a sequence number, blank the slot's sequence, fill it in and
+ * publish the sequence last; readers skip slots whose sequence changed while
+ * they were reading, so a dump never shows a half-written record.
+ */
+public class TraceBuffer {
+
+    public enum Level {
+        OFF("off"),
+        ERROR("error"),
+        INFO("info"),
+        DEBUG("debug");
+
+        private final String name;
+
+        Level(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the level, or null if the name is unknown
+         */
+        public static Level fromName(String name) {
+            for (Level level : values()) {
+                if (level.name.equals(name)) {
+                    return level;
+                }
+            }
+            return null;
+        }
+    }
+
+    public enum Event {
+        ATTACHED("attached", Level.INFO),
+        DETACHED("detached", Level.INFO),
+        PERMISSION("permission", Level.INFO),
+        STATE("state", Level.INFO),
+        BACKPRESSURE("backpressure", Level.INFO),
+        ERROR("error", Level.ERROR),
+        READ("read", Level.DEBUG),
+        WRITE("write", Level.DEBUG),
+        TRANSACTION("transaction", Level.DEBUG);
+
+        private final String name;
+        private final Level level;
+
+        Event(String name, Level level) {
+            this.name = name;
+            this.level = level;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+    }
+
+    public interface Visitor {
+        void visit(long timestampNanos, Event event, int deviceId, int value);
+    }
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int SLOT_SIZE = 3;
+    private static final Event[] EVENTS = Event.values();
+
+    private final int mask;
+    private final AtomicLongArray slots;
+    private final AtomicLong next = new AtomicLong();
+    private volatile Level level;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public TraceBuffer(int capacity, Level level) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicLongArray(size * SLOT_SIZE);
+        for (int i = 0; i < size; i++) {
+            slots.set(i * SLOT_SIZE, -1);
+        }
+        this.level = level;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public boolean isEnabled(Event event) {
+        return event.level.ordinal() <= level.ordinal();
+    }
+
+    public void trace(Event event, int deviceId, int value) {
+        if (event.level.ordinal() > level.ordinal()) {
+            return;
+        }
+
+        long sequence = next.getAndIncrement();
+        int slot = (int) (sequence & mask) * SLOT_SIZE;
+        // Ordered stores: readers see the blanked sequence before any new field
+        slots.lazySet(slot, -1);
+        slots.lazySet(slot + 1, System.nanoTime());
+        slots.lazySet(slot + 2, (long) event.ordinal() << 56 | (long) (deviceId & 0xFFFFFF) << 32 | (value & 0xFFFFFFFFL));
+        slots.lazySet(slot, sequence);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Records written so far, including those already overwritten.
+     */
+    public long written() {
+        return next.get();
+    }
+
+    /**
+     * Visits the retained records, oldest first, and returns how many were
+     * visited. Records being overwritten during the dump are skipped.
+     */
+    public int dump(Visitor visitor) {
+        long end = next.get();
+        long start = Math.max(0, end - capacity());
+        int visited = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & mask) * SLOT_SIZE;
+            if (slots.get(slot) != sequence) {
+                continue;
+            }
+            long timestamp = slots.get(slot + 1);
+            long payload = slots.get(slot + 2);
+            if (slots.get(slot) != sequence) {
+                continue;
+            }
+
+            visitor.visit(timestamp, EVENTS[(int) (payload >>> 56)], (int) (payload >> 32) & 0xFFFFFF, (int) payload);
+            visited++;
+        }
+        return visited;
+    }
+
+    /**
+     * Drops every retained record.
+     */
+    public void clear() {
+        for (int i = 0; i <= mask; i++) {
+            slots.set(i * SLOT_SIZE, -1);
+        }
+    }
+}
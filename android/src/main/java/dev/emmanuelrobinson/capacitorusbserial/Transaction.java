@@ -0,0 +1,181 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+/**
+ * A single request/response exchange. The writer thread sends the request and
+ * waits; meanwhile the reader thread feeds received bytes in until the response
+ * ends with the terminator, reaches the expected length or, for binary
+ * protocols, the length its first bytes announce.
+ */
+public class Transaction {
+
+    public interface FrameLength {
+        /**
+         * @return the total length of the response, or 0 while too few bytes
+         * have arrived to tell
+         */
+        int of(byte[] response, int length);
+    }
+
+    public enum Status {
+        PENDING("pending"),
+        OK("ok"),
+        TIMEOUT("timeout"),
+        OVERFLOW("overflow"),
+        SKIPPED("skipped");
+
+        private final String name;
+
+        Status(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    public static final int DEFAULT_TIMEOUT = 1000;
+    public static final int DEFAULT_MAX_RESPONSE_SIZE = 4096;
+
+    private final byte[] request;
+    private final byte[] terminator;
+    private final int expectedLength;
+    private final FrameLength frameLength;
+    private final int timeout;
+    private final byte[] response;
+    private int length = 0;
+    private Status status = Status.PENDING;
+    private long startedNanos;
+    private long elapsedNanos;
+
+    /**
+     * @param terminator     response ends with these bytes, or null
+     * @param expectedLength response is exactly this long, or 0 to use the terminator
+     */
+    public Transaction(byte[] request, byte[] terminator, int expectedLength, int timeout, int maxResponseSize) {
+        if (terminator != null && terminator.length == 0) {
+            terminator = null;
+        }
+        if (terminator == null && expectedLength <= 0) {
+            throw new IllegalArgumentException("A terminator or expectedLength is required");
+        }
+
+        this.request = request;
+        this.terminator = terminator;
+        this.expectedLength = expectedLength;
+        this.frameLength = null;
+        this.timeout = timeout;
+        this.response = new byte[expectedLength > 0 ? expectedLength : Math.max(terminator.length, maxResponseSize)];
+    }
+
+    public Transaction(byte[] request, FrameLength frameLength, int timeout, int maxResponseSize) {
+        this.request = request;
+        this.terminator = null;
+        this.expectedLength = 0;
+        this.frameLength = frameLength;
+        this.timeout = timeout;
+        this.response = new byte[maxResponseSize];
+    }
+
+    public byte[] getRequest() {
+        return request;
+    }
+
+    /**
+     * Marks the point the timeout counts from; call right before the request is written.
+     */
+    public synchronized void start() {
+        startedNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes bytes until the response is complete and returns how many were
+     * consumed; the rest belong to whatever follows the response.
+     */
+    public synchronized int accept(byte[] data, int offset, int count) {
+        int consumed = 0;
+        while (consumed < count && status == Status.PENDING) {
+            response[length++] = data[offset + consumed++];
+            if (isComplete()) {
+                finish(Status.OK);
+            } else if (length == response.length) {
+                finish(Status.OVERFLOW);
+            }
+        }
+        return consumed;
+    }
+
+    /**
+     * Blocks until the response is complete or the timeout has passed since
+     * {@link #start()}, and returns the final status.
+     */
+    public synchronized Status await() throws InterruptedException {
+        long deadline = startedNanos + timeout * 1_000_000L;
+        while (status == Status.PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                finish(Status.TIMEOUT);
+                break;
+            }
+            wait(remaining / 1_000_000L, (int) (remaining % 1_000_000L));
+        }
+        return status;
+    }
+
+    /**
+     * Clears the response so the same transaction can wait for the next one,
+     * e.g. one acknowledgement per streamed chunk.
+     */
+    public synchronized void reset() {
+        length = 0;
+        status = Status.PENDING;
+    }
+
+    /**
+     * Marks a transaction that never ran because an earlier one in the batch failed.
+     */
+    public synchronized void skip() {
+        status = Status.SKIPPED;
+    }
+
+    public synchronized Status getStatus() {
+        return status;
+    }
+
+    public synchronized byte[] getResponse() {
+        return response;
+    }
+
+    public synchronized int getLength() {
+        return length;
+    }
+
+    public synchronized double getElapsedMillis() {
+        return elapsedNanos / 1e6;
+    }
+
+    private boolean isComplete() {
+        if (frameLength != null) {
+            int total = frameLength.of(response, length);
+            return total > 0 && length >= total;
+        }
+        if (expectedLength > 0) {
+            return length == expectedLength;
+        }
+        if (length < terminator.length) {
+            return false;
+        }
+        for (int i = 0, start = length - terminator.length; i < terminator.length; i++) {
+            if (response[start + i] != terminator[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void finish(Status result) {
+        status = result;
+        elapsedNanos = System.nanoTime() - startedNanos;
+        notifyAll();
+    }
+}
@@ -0,0 +1,118 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.io.IOException;
+
+/**
+ * Transmit side of a connection: the bounded write queue, its writer thread
+ * and the transport the bytes go out on.
+ */
+public class Transmitter {
+
+    public interface Completion {
+        /**
+         * @param error null on success
+         */
+        void onComplete(int bytesWritten, Exception error);
+    }
+
+    private final SerialTransport transport;
+    private final WriteQueue queue;
+    private final ConnectionStats stats;
+    private final int writeBufferSize;
+
+    /**
+     * @param writeBufferSize largest slice per transport write, 0 for no limit
+     */
+    public Transmitter(
+        String name,
+        SerialTransport transport,
+        int queueCapacity,
+        int writeBufferSize,
+        ConnectionStats stats,
+        WriteQueue.Listener listener
+    ) {
+        this.transport = transport;
+        this.stats = stats;
+        this.writeBufferSize = writeBufferSize;
+        this.queue = new WriteQueue(name, queueCapacity, listener);
+    }
+
+    /**
+     * Queues buffers that go out back to back and complete together. Returns
+     * false if the queue is full; the completion is not called in that case.
+     */
+    public boolean write(byte[][] chunks, int timeout, Completion completion) {
+        return queue.offer(new WriteTask(chunks, timeout, completion));
+    }
+
+    /**
+     * Queues an arbitrary operation to run on the writer thread, in order with writes.
+     */
+    public boolean offer(WriteQueue.Task task) {
+        return queue.offer(task);
+    }
+
+    /**
+     * Writes immediately; only to be called from a task on the writer thread.
+     */
+    public void writeNow(byte[] data, int offset, int length, int timeout) throws IOException {
+        if (writeBufferSize <= 0 || length <= writeBufferSize) {
+            transport.write(data, offset, length, timeout);
+            return;
+        }
+        // Bound each bulk transfer so the timeout applies per slice, not per buffer
+        for (int end = offset + length; offset < end; offset += writeBufferSize) {
+            transport.write(data, offset, Math.min(writeBufferSize, end - offset), timeout);
+        }
+    }
+
+    /**
+     * Keeps queued writes waiting, e.g. while the port is gone.
+     */
+    public void pause() {
+        queue.pause();
+    }
+
+    public void resume() {
+        queue.resume();
+    }
+
+    public int queued() {
+        return queue.size();
+    }
+
+    public void close() {
+        queue.close();
+    }
+
+    private class WriteTask extends WriteQueue.Task {
+
+        private final byte[][] chunks;
+        private final int timeout;
+        private final Completion completion;
+        private final long queuedAt = System.nanoTime();
+        private int bytesWritten = 0;
+
+        WriteTask(byte[][] chunks, int timeout, Completion completion) {
+            this.chunks = chunks;
+            this.timeout = timeout;
+            this.completion = completion;
+        }
+
+        @Override
+        protected void execute() throws IOException {
+            for (byte[] chunk : chunks) {
+                writeNow(chunk, 0, chunk.length, timeout);
+                bytesWritten += chunk.length;
+            }
+        }
+
+        @Override
+        protected void complete(Exception error) {
+            if (error == null) {
+                stats.recordWrite(bytesWritten, System.nanoTime() - queuedAt);
+            }
+            completion.onComplete(bytesWritten, error);
+        }
+    }
+}
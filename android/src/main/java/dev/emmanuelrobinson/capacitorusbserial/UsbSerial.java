@@ -1,6 +1,5 @@
 package dev.emmanuelrobinson.capacitorusbserial;
 
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -8,102 +7,100 @@ import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ResultReceiver;
 import android.util.Log;
 
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.PluginCall;
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
 import com.hoho.android.usbserial.driver.UsbSerialProber;
-import com.hoho.android.usbserial.util.SerialInputOutputManager;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class UsbSerial implements SerialInputOutputManager.Listener {
+public class UsbSerial {
     private static final String TAG = "UsbSerial";
-    private static final String ACTION_USB_PERMISSION = "dev.emmanuelrobinson.capacitorusbserial.USB_PERMISSION";
+    private static final int DEFAULT_DRAIN_TIMEOUT = 5000;
     
     private final Context context;
     private final UsbSerialPlugin plugin;
     private UsbManager usbManager;
-    private UsbSerialPort serialPort;
-    private SerialInputOutputManager ioManager;
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
-    private UsbDevice currentDevice;
+    private DeviceRegistry deviceRegistry;
+    private PermissionManager permissionManager;
+    private TraceBuffer trace;
+    // Offset from System.nanoTime() trace timestamps to wall-clock milliseconds
+    private long traceEpochOffsetMs;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
     
-    private PluginCall pendingPermissionCall = null;
+    // Open connections keyed by "deviceId:portNumber"
+    private final Map<String, SerialConnection> connections = new ConcurrentHashMap<>();
+    
+    // Running replays keyed by the connectionId their events carry
+    private final Map<String, SessionReplay> replays = new ConcurrentHashMap<>();
+    
+    // Foreground service wake lock, held only while connections are open; guarded by this
+    private boolean serviceWakeLock = false;
+    private boolean serviceWakeLockHeld = false;
     
     private final BroadcastReceiver usbReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
-            Log.d(TAG, "Broadcast received with action: " + action);
             
-            if (ACTION_USB_PERMISSION.equals(action)) {
-                synchronized (this) {
-                    UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-                    boolean granted = intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false);
-                    
-                    Log.d(TAG, "USB permission result for device " + (device != null ? device.getDeviceName() + " (ID: " + device.getDeviceId() + ")" : "null") + ": " + granted);
-                    
-                    // Debug: Log all intent extras
-                    android.os.Bundle extras = intent.getExtras();
-                    if (extras != null) {
-                        Log.d(TAG, "Intent extras:");
-                        for (String key : extras.keySet()) {
-                            Object value = extras.get(key);
-                            Log.d(TAG, "  " + key + " = " + value + " (type: " + (value != null ? value.getClass().getSimpleName() : "null") + ")");
-                        }
-                    } else {
-                        Log.d(TAG, "No intent extras");
-                    }
-                    
-                    if (pendingPermissionCall != null) {
-                        JSObject ret = new JSObject();
-                        ret.put("granted", granted);
-                        if (granted) {
-                            Log.d(TAG, "Permission granted, resolving call");
-                            pendingPermissionCall.resolve(ret);
-                        } else {
-                            Log.d(TAG, "Permission denied, rejecting call");
-                            pendingPermissionCall.reject("USB permission denied by user");
-                        }
-                        pendingPermissionCall = null;
-                    } else {
-                        Log.w(TAG, "Received permission result but no pending call");
-                    }
-                }
+            if (PermissionManager.ACTION_USB_PERMISSION.equals(action)) {
+                permissionManager.onPermissionResult(intent);
             } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
                 UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
                 if (device != null) {
+                    deviceRegistry.onAttached(device);
+                    
                     // Notify about device attachment
                     JSObject deviceInfo = createDeviceInfo(device);
                     plugin.notifyListenersFromImplementation("deviceAttached", deviceInfo);
-                    Log.d(TAG, "USB device attached: " + device.getDeviceName());
+                    trace.trace(TraceBuffer.Event.ATTACHED, device.getDeviceId(), device.getVendorId() << 16 | device.getProductId());
+                    
+                    resumeSessions(device);
                 }
             } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
                 UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
                 if (device != null) {
+                    deviceRegistry.onDetached(device);
+                    permissionManager.onDetached(device);
+                    
                     // Notify about device detachment
                     JSObject event = new JSObject();
                     event.put("deviceId", device.getDeviceId());
                     plugin.notifyListenersFromImplementation("deviceDetached", event);
-                    Log.d(TAG, "USB device detached: " + device.getDeviceName());
+                    trace.trace(TraceBuffer.Event.DETACHED, device.getDeviceId(), device.getVendorId() << 16 | device.getProductId());
                     
-                    // If this was our connected device, handle disconnection
-                    if (currentDevice != null && currentDevice.equals(device)) {
-                        disconnect();
-                        plugin.notifyListenersFromImplementation("connectionStateChanged", new JSObject()
-                            .put("connected", false)
-                            .put("deviceId", device.getDeviceId()));
+                    // Close every port that was open on this device, or keep its session for the device to return
+                    for (SerialConnection connection : connections.values()) {
+                        if (connection.getDevice().equals(device)) {
+                            if (connection.isAutoReconnect()) {
+                                suspend(connection);
+                            } else {
+                                disconnect(connection);
+                            }
+                        }
                     }
                 }
             }
@@ -117,25 +114,54 @@ public class UsbSerial implements SerialInputOutputManager.Listener {
     
     public void initialize() {
         usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
+        TraceBuffer.Level traceLevel = TraceBuffer.Level.fromName(plugin.getConfig().getString("traceLevel", "info"));
+        trace = new TraceBuffer(
+            plugin.getConfig().getInt("traceCapacity", TraceBuffer.DEFAULT_CAPACITY),
+            traceLevel != null ? traceLevel : TraceBuffer.Level.INFO
+        );
+        traceEpochOffsetMs = System.currentTimeMillis() - System.nanoTime() / 1_000_000L;
+        
+        // Probe once up front, the receiver keeps the registry current afterwards
+        JSONArray customDrivers = plugin.getConfig().getConfigJSON().optJSONArray("customDrivers");
+        deviceRegistry = new DeviceRegistry(usbManager, new UsbSerialProber(DeviceRegistry.createProbeTable(customDrivers)));
+        deviceRegistry.refresh();
+        permissionManager = new PermissionManager(context, usbManager);
         
         IntentFilter filter = new IntentFilter();
-        filter.addAction(ACTION_USB_PERMISSION);
+        filter.addAction(PermissionManager.ACTION_USB_PERMISSION);
         filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
         filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
         
-        Log.d(TAG, "Registering broadcast receiver with actions: " + ACTION_USB_PERMISSION);
-        
         // Try registering with EXPORTED flag to receive system broadcasts
         if (android.os.Build.VERSION.SDK_INT >= 34) {
             context.registerReceiver(usbReceiver, filter, Context.RECEIVER_EXPORTED);
         } else {
             context.registerReceiver(usbReceiver, filter);
         }
-        
-        Log.d(TAG, "USB broadcast receiver registered successfully");
+    }
+    
+    /**
+     * The app went to the background: spool what connections receive until
+     * it resumes. Runs on the scheduler, in order with onResume().
+     */
+    public void onPause() {
+        scheduler.execute(() -> {
+            for (SerialConnection connection : connections.values()) {
+                connection.pauseDelivery();
+            }
+        });
+    }
+    
+    public void onResume() {
+        scheduler.execute(() -> {
+            for (SerialConnection connection : connections.values()) {
+                connection.resumeDelivery();
+            }
+        });
     }
     
     public void cleanup() {
+        stopService();
         try {
             context.unregisterReceiver(usbReceiver);
         } catch (Exception e) {
@@ -143,13 +169,13 @@ public class UsbSerial implements SerialInputOutputManager.Listener {
         }
         
         // Cancel any pending permission calls
-        if (pendingPermissionCall != null) {
-            pendingPermissionCall.reject("Plugin cleanup - permission cancelled");
-            pendingPermissionCall = null;
-        }
+        permissionManager.cancelAll();
         
-        disconnect();
-        executor.shutdown();
+        disconnectAll();
+        for (SessionReplay replay : replays.values()) {
+            replay.stop();
+        }
+        scheduler.shutdown();
     }
     
     public void requestPermission(PluginCall call) {
@@ -157,16 +183,12 @@ public class UsbSerial implements SerialInputOutputManager.Listener {
         UsbDevice device = null;
         
         if (deviceId != null) {
-            for (UsbDevice d : usbManager.getDeviceList().values()) {
-                if (d.getDeviceId() == deviceId) {
-                    device = d;
-                    break;
-                }
-            }
+            device = deviceRegistry.getDevice(deviceId);
         } else {
             // Get first available device
-            if (!usbManager.getDeviceList().isEmpty()) {
-                device = usbManager.getDeviceList().values().iterator().next();
+            Collection<UsbDevice> devices = deviceRegistry.getDevices();
+            if (!devices.isEmpty()) {
+                device = devices.iterator().next();
             }
         }
         
@@ -175,79 +197,54 @@ public class UsbSerial implements SerialInputOutputManager.Listener {
             return;
         }
         
-        if (usbManager.hasPermission(device)) {
-            Log.d(TAG, "Device already has permission");
-            JSObject ret = new JSObject();
-            ret.put("granted", true);
-            call.resolve(ret);
-        } else {
-            Log.d(TAG, "Requesting permission for device: " + device.getDeviceName() + " (ID: " + device.getDeviceId() + ")");
-            
-            // Store the call and device to respond to later
-            pendingPermissionCall = call;
-            final UsbDevice permissionDevice = device;
-            
-            // Create intent with the exact action string
-            Intent permissionIntent = new Intent(ACTION_USB_PERMISSION);
-            permissionIntent.setPackage(context.getPackageName()); // Ensure it's delivered to our app
-            Log.d(TAG, "Created intent with action: " + ACTION_USB_PERMISSION + " and package: " + context.getPackageName());
-            
-            PendingIntent pendingIntent;
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.S) {
-                pendingIntent = PendingIntent.getBroadcast(context, 0, permissionIntent, 
-                    PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+        permissionManager.request(device, (permissionDevice, granted) -> {
+            trace.trace(TraceBuffer.Event.PERMISSION, permissionDevice.getDeviceId(), granted ? 1 : 0);
+            if (granted) {
+                JSObject ret = new JSObject();
+                ret.put("granted", true);
+                call.resolve(ret);
             } else {
-                pendingIntent = PendingIntent.getBroadcast(context, 0, permissionIntent, 
-                    PendingIntent.FLAG_UPDATE_CURRENT);
+                call.reject("USB permission denied by user");
             }
-            
-            Log.d(TAG, "Created PendingIntent, requesting permission from UsbManager...");
-            usbManager.requestPermission(device, pendingIntent);
-            Log.d(TAG, "Permission request sent to system");
-            
-            // Alternative approach: Poll for permission changes
-            final android.os.Handler handler = new android.os.Handler(android.os.Looper.getMainLooper());
-            final int[] pollCount = {0};
-            final Runnable pollPermission = new Runnable() {
-                @Override
-                public void run() {
-                    pollCount[0]++;
-                    Log.d(TAG, "Polling permission status, attempt: " + pollCount[0]);
-                    
-                    if (usbManager.hasPermission(permissionDevice)) {
-                        Log.d(TAG, "Permission granted detected via polling");
-                        if (pendingPermissionCall != null) {
-                            JSObject ret = new JSObject();
-                            ret.put("granted", true);
-                            pendingPermissionCall.resolve(ret);
-                            pendingPermissionCall = null;
-                        }
-                        return;
-                    }
-                    
-                    // Continue polling for up to 30 seconds
-                    if (pollCount[0] < 60 && pendingPermissionCall != null) {
-                        handler.postDelayed(this, 500); // Poll every 500ms
-                    } else if (pendingPermissionCall != null) {
-                        Log.w(TAG, "Permission polling timed out");
-                        pendingPermissionCall.reject("Permission request timeout - user did not respond");
-                        pendingPermissionCall = null;
-                    }
+        });
+    }
+    
+    public void requestPermissions(PluginCall call) {
+        List<UsbDevice> devices = new ArrayList<>();
+        JSONArray deviceIds = call.getArray("deviceIds");
+        if (deviceIds != null) {
+            for (int i = 0; i < deviceIds.length(); i++) {
+                UsbDevice device = deviceRegistry.getDevice(deviceIds.optInt(i, -1));
+                if (device == null) {
+                    call.reject("Device not found: " + deviceIds.opt(i));
+                    return;
                 }
-            };
-            
-            // Start polling after a short delay
-            handler.postDelayed(pollPermission, 1000);
+                devices.add(device);
+            }
+        } else {
+            // Every device with a serial driver
+            for (UsbSerialDriver driver : deviceRegistry.getDrivers()) {
+                devices.add(driver.getDevice());
+            }
         }
+        
+        permissionManager.requestAll(devices, results -> {
+            JSONArray resultsArray = new JSONArray();
+            for (Map.Entry<UsbDevice, Boolean> result : results.entrySet()) {
+                resultsArray.put(new JSObject()
+                    .put("deviceId", result.getKey().getDeviceId())
+                    .put("granted", result.getValue()));
+            }
+            JSObject ret = new JSObject();
+            ret.put("results", resultsArray);
+            call.resolve(ret);
+        });
     }
     
     public void listDevices(PluginCall call) {
         JSONArray devicesArray = new JSONArray();
         
-        List<UsbSerialDriver> availableDrivers = UsbSerialProber.getDefaultProber()
-            .findAllDrivers(usbManager);
-        
-        for (UsbSerialDriver driver : availableDrivers) {
+        for (UsbSerialDriver driver : deviceRegistry.getDrivers()) {
             UsbDevice device = driver.getDevice();
             try {
                 JSONObject deviceObj = new JSONObject();
@@ -255,11 +252,12 @@ public class UsbSerial implements SerialInputOutputManager.Listener {
                 deviceObj.put("vendorId", device.getVendorId());
                 deviceObj.put("productId", device.getProductId());
                 deviceObj.put("deviceName", device.getDeviceName());
+                deviceObj.put("portCount", driver.getPorts().size());
                 
                 // Only access privileged properties if we have permission
                 if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
                     try {
-                        if (usbManager.hasPermission(device)) {
+                        if (permissionManager.hasPermission(device)) {
                             deviceObj.put("manufacturerName", device.getManufacturerName());
                             deviceObj.put("serialNumber", device.getSerialNumber());
                         } else {
@@ -290,106 +288,279 @@ public class UsbSerial implements SerialInputOutputManager.Listener {
             call.reject("Device ID is required");
             return;
         }
+        int portNumber = call.getInt("portNumber", 0);
+        
+        String connectionId = SerialConnection.createId(deviceId, portNumber);
         
         JSObject serialOptions = call.getObject("serialOptions", new JSObject());
-        int baudRate = serialOptions.getInteger("baudRate", 115200);
-        int dataBits = serialOptions.getInteger("dataBits", 8);
-        int stopBits = serialOptions.getInteger("stopBits", UsbSerialPort.STOPBITS_1);
-        int parity = UsbSerialPort.PARITY_NONE;
         
-        String parityStr = serialOptions.getString("parity", "none");
-        switch (parityStr) {
-            case "odd": parity = UsbSerialPort.PARITY_ODD; break;
-            case "even": parity = UsbSerialPort.PARITY_EVEN; break;
-            case "mark": parity = UsbSerialPort.PARITY_MARK; break;
-            case "space": parity = UsbSerialPort.PARITY_SPACE; break;
+        UsbDevice device = deviceRegistry.getDevice(deviceId);
+        if (device == null) {
+            call.reject("Device not found");
+            return;
         }
         
-        UsbDevice device = null;
-        for (UsbDevice d : usbManager.getDeviceList().values()) {
-            if (d.getDeviceId() == deviceId) {
-                device = d;
-                break;
-            }
+        UsbSerialDriver driver = deviceRegistry.getDriver(deviceId);
+        if (driver == null) {
+            call.reject("No driver for device");
+            return;
         }
         
-        if (device == null) {
-            call.reject("Device not found");
+        List<UsbSerialPort> ports = driver.getPorts();
+        if (portNumber < 0 || portNumber >= ports.size()) {
+            call.reject("Device has no port " + portNumber);
             return;
         }
         
-        List<UsbSerialDriver> availableDrivers = UsbSerialProber.getDefaultProber()
-            .findAllDrivers(usbManager);
-        
-        UsbSerialDriver driver = null;
-        for (UsbSerialDriver d : availableDrivers) {
-            if (d.getDevice().getDeviceId() == deviceId) {
-                driver = d;
-                break;
-            }
+        if (!permissionManager.hasPermission(device)) {
+            call.reject("USB permission not granted, call requestPermission first", "PERMISSION_DENIED");
+            return;
         }
         
-        if (driver == null) {
-            call.reject("No driver for device");
+        // Claim the port before opening it, so a concurrent connect cannot open it twice
+        SerialConnection connection = new SerialConnection(plugin, scheduler, trace, device, ports.get(portNumber));
+        if (connections.putIfAbsent(connectionId, connection) != null) {
+            call.reject("Already connected to port " + connectionId);
             return;
         }
+        updateServiceWakeLock();
         
-        UsbDeviceConnection connection = usbManager.openDevice(device);
-        if (connection == null) {
+        // Every port gets its own device connection, closing a port closes it
+        UsbDeviceConnection usbConnection = usbManager.openDevice(device);
+        if (usbConnection == null) {
+            connections.remove(connectionId, connection);
+            updateServiceWakeLock();
             call.reject("Cannot open device");
             return;
         }
         
         try {
-            serialPort = driver.getPorts().get(0);
-            serialPort.open(connection);
-            serialPort.setParameters(baudRate, dataBits, stopBits, parity);
-            
-            currentDevice = device;
-            
-            // Start IO manager
-            ioManager = new SerialInputOutputManager(serialPort, this);
-            ioManager.start();
+            connection.open(usbConnection, serialOptions);
             
             JSObject ret = new JSObject();
             ret.put("connected", true);
+            ret.put("connectionId", connectionId);
             call.resolve(ret);
             
             plugin.notifyListenersFromImplementation("connectionStateChanged", new JSObject()
                 .put("connected", true)
-                .put("deviceId", deviceId));
+                .put("state", ConnectionState.OPEN.getName())
+                .put("deviceId", deviceId)
+                .put("portNumber", portNumber)
+                .put("connectionId", connectionId));
                 
         } catch (IOException e) {
+            connections.remove(connectionId, connection);
+            updateServiceWakeLock();
             JSObject errorEvent = new JSObject();
             errorEvent.put("message", "Failed to connect: " + e.getMessage());
+            errorEvent.put("connectionId", connectionId);
             plugin.notifyListenersFromImplementation("error", errorEvent);
             call.reject("Failed to connect: " + e.getMessage());
         }
     }
     
     public void disconnect(PluginCall call) {
-        disconnect();
+        List<SerialConnection> targets = new ArrayList<>();
+        if (call.getString("connectionId") == null && call.getInt("deviceId") == null) {
+            // No target given, close everything like the single connection API did
+            targets.addAll(connections.values());
+        } else {
+            SerialConnection connection = findConnection(call);
+            if (connection == null) {
+                return;
+            }
+            targets.add(connection);
+        }
+        
         JSObject ret = new JSObject();
         ret.put("disconnected", true);
-        call.resolve(ret);
+        if (!call.getBoolean("drain", false) || targets.isEmpty()) {
+            for (SerialConnection connection : targets) {
+                disconnect(connection);
+            }
+            call.resolve(ret);
+            return;
+        }
+        
+        // Resolve once every target has drained its queued writes and closed
+        int drainTimeout = call.getInt("drainTimeout", DEFAULT_DRAIN_TIMEOUT);
+        AtomicInteger remaining = new AtomicInteger(targets.size());
+        for (SerialConnection connection : targets) {
+            connection.drainAndClose(drainTimeout, () -> {
+                removeConnection(connection);
+                if (remaining.decrementAndGet() == 0) {
+                    call.resolve(ret);
+                }
+            });
+        }
     }
     
-    private void disconnect() {
-        if (ioManager != null) {
-            ioManager.stop();
-            ioManager = null;
+    private void disconnectAll() {
+        for (SerialConnection connection : connections.values()) {
+            disconnect(connection);
         }
+    }
+    
+    private void disconnect(SerialConnection connection) {
+        connection.close();
+        removeConnection(connection);
+    }
+    
+    /**
+     * Forgets a closed connection and reports it, once.
+     */
+    private void removeConnection(SerialConnection connection) {
+        if (!connections.remove(connection.getId(), connection)) {
+            return;
+        }
+        updateServiceWakeLock();
         
-        if (serialPort != null) {
-            try {
-                serialPort.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing port", e);
+        plugin.notifyListenersFromImplementation("connectionStateChanged", new JSObject()
+            .put("connected", false)
+            .put("state", ConnectionState.CLOSED.getName())
+            .put("deviceId", connection.getDevice().getDeviceId())
+            .put("portNumber", connection.getPortNumber())
+            .put("connectionId", connection.getId()));
+    }
+    
+    /**
+     * Keeps the session of a detached auto-reconnect port, including its
+     * connectionId and queued writes, until the device is attached again or
+     * the reconnect timeout passes.
+     */
+    private void suspend(SerialConnection connection) {
+        ScheduledFuture<?> timeoutTask = null;
+        if (connection.getReconnectTimeout() > 0) {
+            timeoutTask = scheduler.schedule(() -> {
+                // Only if it was not resumed in the meantime
+                if (connection.closeIfSuspended()) {
+                    JSObject errorEvent = new JSObject();
+                    errorEvent.put("message", "Device did not return within the reconnect timeout");
+                    errorEvent.put("connectionId", connection.getId());
+                    plugin.notifyListenersFromImplementation("error", errorEvent);
+                    removeConnection(connection);
+                }
+            }, connection.getReconnectTimeout(), TimeUnit.MILLISECONDS);
+        }
+        if (!connection.suspend(timeoutTask)) {
+            // Draining or closing already, there is no session to keep
+            if (timeoutTask != null) {
+                timeoutTask.cancel(false);
             }
-            serialPort = null;
+            disconnect(connection);
+            return;
         }
         
-        currentDevice = null;
+        plugin.notifyListenersFromImplementation("connectionStateChanged", new JSObject()
+            .put("connected", false)
+            .put("state", ConnectionState.SUSPENDED.getName())
+            .put("reconnecting", true)
+            .put("deviceId", connection.getDevice().getDeviceId())
+            .put("portNumber", connection.getPortNumber())
+            .put("connectionId", connection.getId()));
+    }
+    
+    /**
+     * Re-opens every suspended session that belongs to a newly attached
+     * device, asking for permission first if the device does not have it.
+     */
+    private void resumeSessions(UsbDevice device) {
+        for (SerialConnection connection : connections.values()) {
+            if (!connection.isSuspended() || !connection.matchesProduct(device)) {
+                continue;
+            }
+            
+            if (!permissionManager.hasPermission(device)) {
+                // Android forgets the grant when a device is unplugged
+                permissionManager.request(device, (permissionDevice, granted) -> {
+                    if (granted) {
+                        resumeSessions(permissionDevice);
+                    }
+                });
+                return;
+            }
+            if (connection.matches(device)) {
+                resume(connection, device);
+            }
+        }
+    }
+    
+    private void resume(SerialConnection connection, UsbDevice device) {
+        long startedAt = System.nanoTime();
+        
+        UsbSerialDriver driver = deviceRegistry.getDriver(device.getDeviceId());
+        if (driver == null || connection.getPortNumber() >= driver.getPorts().size()) {
+            Log.w(TAG, "No matching port on re-attached device " + device.getDeviceName());
+            return;
+        }
+        UsbDeviceConnection usbConnection = usbManager.openDevice(device);
+        if (usbConnection == null) {
+            Log.w(TAG, "Cannot open re-attached device " + device.getDeviceName());
+            return;
+        }
+        
+        int queuedWrites = connection.getQueuedWrites();
+        double downtime;
+        try {
+            downtime = connection.resume(device, driver.getPorts().get(connection.getPortNumber()), usbConnection);
+        } catch (IOException e) {
+            JSObject errorEvent = new JSObject();
+            errorEvent.put("message", "Failed to reconnect: " + e.getMessage());
+            errorEvent.put("connectionId", connection.getId());
+            plugin.notifyListenersFromImplementation("error", errorEvent);
+            return;
+        }
+        
+        plugin.notifyListenersFromImplementation("connectionStateChanged", new JSObject()
+            .put("connected", true)
+            .put("state", ConnectionState.OPEN.getName())
+            .put("reconnected", true)
+            .put("deviceId", device.getDeviceId())
+            .put("portNumber", connection.getPortNumber())
+            .put("connectionId", connection.getId()));
+        
+        JSObject event = new JSObject();
+        event.put("connectionId", connection.getId());
+        event.put("deviceId", device.getDeviceId());
+        event.put("portNumber", connection.getPortNumber());
+        event.put("downtime", downtime);
+        event.put("openTime", (System.nanoTime() - startedAt) / 1e6);
+        event.put("queuedWrites", queuedWrites);
+        plugin.notifyListenersFromImplementation("reconnected", event);
+    }
+    
+    /**
+     * Resolves the connection a call addresses, by connectionId, by deviceId
+     * (+ portNumber) or, when only one port is open, implicitly. Rejects the
+     * call and returns null if there is no match.
+     */
+    private SerialConnection findConnection(PluginCall call) {
+        String connectionId = call.getString("connectionId");
+        if (connectionId == null) {
+            Integer deviceId = call.getInt("deviceId");
+            if (deviceId != null) {
+                connectionId = SerialConnection.createId(deviceId, call.getInt("portNumber", 0));
+            }
+        }
+        
+        if (connectionId != null) {
+            SerialConnection connection = connections.get(connectionId);
+            if (connection == null) {
+                call.reject("Not connected to " + connectionId);
+            }
+            return connection;
+        }
+        
+        if (connections.isEmpty()) {
+            call.reject("Not connected");
+            return null;
+        }
+        if (connections.size() > 1) {
+            call.reject("connectionId is required when several ports are open");
+            return null;
+        }
+        return connections.values().iterator().next();
     }
     
     public void write(PluginCall call) {
@@ -399,62 +570,602 @@ public class UsbSerial implements SerialInputOutputManager.Listener {
             return;
         }
         
-        if (serialPort == null) {
-            call.reject("Not connected");
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
             return;
         }
         
+        connection.write(data.getBytes(StandardCharsets.UTF_8), call);
+    }
+    
+    public void writeBytes(PluginCall call) {
+        byte[] bytes;
         try {
-            byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
-            serialPort.write(bytes, 1000);
-            
-            JSObject ret = new JSObject();
-            ret.put("bytesWritten", bytes.length);
-            call.resolve(ret);
+            bytes = decodeBytes(call.getData().opt("data"));
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+        if (bytes == null) {
+            call.reject("No data provided");
+            return;
+        }
+        
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        
+        connection.write(bytes, call);
+    }
+    
+    public void writeChunks(PluginCall call) {
+        JSONArray chunksArray = call.getArray("chunks");
+        if (chunksArray == null || chunksArray.length() == 0) {
+            call.reject("No chunks provided");
+            return;
+        }
+        
+        byte[][] chunks = new byte[chunksArray.length()][];
+        try {
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = decodeBytes(chunksArray.opt(i));
+                if (chunks[i] == null) {
+                    call.reject("Chunk " + i + " is empty");
+                    return;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+        
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        
+        connection.write(chunks, call);
+    }
+    
+    public void transact(PluginCall call) {
+        Transaction transaction;
+        try {
+            transaction = createTransaction(call.getData());
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+        
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        
+        connection.transact(new Transaction[] { transaction }, true, true, call);
+    }
+    
+    public void transactBatch(PluginCall call) {
+        JSONArray transactionsArray = call.getArray("transactions");
+        if (transactionsArray == null || transactionsArray.length() == 0) {
+            call.reject("No transactions provided");
+            return;
+        }
+        
+        Transaction[] transactions = new Transaction[transactionsArray.length()];
+        try {
+            for (int i = 0; i < transactions.length; i++) {
+                JSONObject options = transactionsArray.optJSONObject(i);
+                if (options == null) {
+                    call.reject("Transaction " + i + " is not an object");
+                    return;
+                }
+                transactions[i] = createTransaction(options);
+            }
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+        
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        
+        connection.transact(transactions, call.getBoolean("stopOnError", false), false, call);
+    }
+    
+    private Transaction createTransaction(JSONObject options) {
+        byte[] request = decodeBytes(options.opt("data"));
+        if (request == null) {
+            throw new IllegalArgumentException("No data provided");
+        }
+        return new Transaction(
+            request,
+            SerialConnection.getBytesOption(options, "terminator"),
+            options.optInt("expectedLength", 0),
+            options.optInt("timeout", Transaction.DEFAULT_TIMEOUT),
+            options.optInt("maxResponseSize", Transaction.DEFAULT_MAX_RESPONSE_SIZE)
+        );
+    }
+    
+    /**
+     * Converts a base64 string or an array of byte values to bytes.
+     */
+    private byte[] decodeBytes(Object value) {
+        if (value instanceof String) {
+            return DataEncoder.fromBase64((String) value);
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            byte[] bytes = new byte[array.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) array.optInt(i);
+            }
+            return bytes;
+        }
+        return null;
+    }
+    
+    public void getStats(PluginCall call) {
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        call.resolve(connection.getStats());
+    }
+    
+    public void read(PluginCall call) {
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        connection.read(call);
+    }
+    
+    public void setFilter(PluginCall call) {
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.setFilter(call.getObject("filter", null));
         } catch (IOException e) {
-            JSObject errorEvent = new JSObject();
-            errorEvent.put("message", "Write failed: " + e.getMessage());
-            plugin.notifyListenersFromImplementation("error", errorEvent);
-            call.reject("Write failed: " + e.getMessage());
+            call.reject(e.getMessage());
+            return;
+        }
+        call.resolve();
+    }
+    
+    public void setControlLines(PluginCall call) {
+        Boolean dtr = call.getBoolean("dtr");
+        Boolean rts = call.getBoolean("rts");
+        if (dtr == null && rts == null) {
+            call.reject("No control lines provided");
+            return;
+        }
+        
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        connection.setControlLines(dtr, rts, call);
+    }
+    
+    public void getControlLines(PluginCall call) {
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        try {
+            call.resolve(connection.getControlLines());
+        } catch (IOException e) {
+            call.reject("Reading control lines failed: " + e.getMessage());
+        }
+    }
+    
+    public void sendBreak(PluginCall call) {
+        int duration = call.getInt("duration", 250);
+        if (duration < 0 || duration > PulseSequence.MAX_DELAY_MS) {
+            call.reject("duration must be between 0 and " + PulseSequence.MAX_DELAY_MS);
+            return;
+        }
+        
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        connection.sendBreak(duration, call);
+    }
+    
+    public void pulseSequence(PluginCall call) {
+        JSONArray stepsArray = call.getArray("steps");
+        if (stepsArray == null || stepsArray.length() == 0) {
+            call.reject("No steps provided");
+            return;
+        }
+        
+        PulseSequence sequence = new PulseSequence();
+        try {
+            for (int i = 0; i < stepsArray.length(); i++) {
+                JSONObject step = stepsArray.optJSONObject(i);
+                if (step == null) {
+                    call.reject("Step " + i + " is not an object");
+                    return;
+                }
+                sequence.add(
+                    optBoolean(step, "dtr"),
+                    optBoolean(step, "rts"),
+                    optBoolean(step, "break"),
+                    step.optInt("delayMs", 0)
+                );
+            }
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+        
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        connection.runSequence(sequence, call);
+    }
+    
+    public void purgeHwBuffers(PluginCall call) {
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        connection.purgeHwBuffers(call.getBoolean("write", true), call.getBoolean("read", true), call);
+    }
+    
+    public void drain(PluginCall call) {
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        connection.drain(call);
+    }
+    
+    public void streamFile(PluginCall call) {
+        String path = call.getString("path");
+        if (path == null) {
+            call.reject("No path provided");
+            return;
+        }
+        // Relative paths are resolved against the app's files directory
+        File file = new File(path);
+        if (!file.isAbsolute()) {
+            file = new File(context.getFilesDir(), path);
+        }
+        if (!file.isFile()) {
+            call.reject("File not found: " + file.getAbsolutePath());
+            return;
+        }
+        
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
         }
+        
+        FileStreamer streamer;
+        try {
+            streamer = new FileStreamer(
+                file,
+                call.getInt("chunkSize", FileStreamer.DEFAULT_CHUNK_SIZE),
+                call.getInt("interChunkDelay", 0),
+                SerialConnection.getBytesOption(call.getData(), "ack"),
+                call.getInt("ackTimeout", Transaction.DEFAULT_TIMEOUT),
+                call.getLong("progressInterval", FileStreamer.DEFAULT_PROGRESS_INTERVAL_MS),
+                connection::onStreamProgress
+            );
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+        connection.streamFile(streamer, call);
+    }
+    
+    public void cancelStream(PluginCall call) {
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        JSObject ret = new JSObject();
+        ret.put("cancelled", connection.cancelStream());
+        call.resolve(ret);
+    }
+    
+    public void startModbusPolling(PluginCall call) {
+        JSONArray groupsArray = call.getArray("groups");
+        if (groupsArray == null || groupsArray.length() == 0) {
+            call.reject("No groups provided");
+            return;
+        }
+        
+        List<ModbusMaster.PollGroup> groups = new ArrayList<>();
+        try {
+            for (int i = 0; i < groupsArray.length(); i++) {
+                JSONObject group = groupsArray.optJSONObject(i);
+                if (group == null) {
+                    call.reject("Group " + i + " is not an object");
+                    return;
+                }
+                groups.add(new ModbusMaster.PollGroup(
+                    group.optString("id", String.valueOf(i)),
+                    group.optInt("slave", 1),
+                    group.optInt("function", ModbusRtu.READ_HOLDING_REGISTERS),
+                    group.optInt("address", 0),
+                    group.optInt("count", 1),
+                    group.optInt("interval", ModbusMaster.DEFAULT_INTERVAL)
+                ));
+            }
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+        
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.startModbusPolling(groups, call.getInt("timeout", ModbusMaster.DEFAULT_TIMEOUT));
+        } catch (IOException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+        call.resolve();
+    }
+    
+    public void stopModbusPolling(PluginCall call) {
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        ModbusMaster master = connection.stopModbusPolling();
+        
+        JSObject ret = new JSObject();
+        ret.put("polls", master != null ? master.getPolls() : 0);
+        ret.put("failures", master != null ? master.getFailures() : 0);
+        ret.put("changes", master != null ? master.getChanges() : 0);
+        call.resolve(ret);
+    }
+    
+    public void dumpTrace(PluginCall call) {
+        JSArray records = new JSArray();
+        trace.dump((timestampNanos, event, deviceId, value) -> {
+            JSObject record = new JSObject();
+            record.put("time", traceEpochOffsetMs + timestampNanos / 1_000_000L);
+            record.put("event", event.getName());
+            record.put("deviceId", deviceId);
+            record.put("value", value);
+            records.put(record);
+        });
+        
+        JSObject ret = new JSObject();
+        ret.put("level", trace.getLevel().getName());
+        ret.put("capacity", trace.capacity());
+        ret.put("written", trace.written());
+        ret.put("records", records);
+        if (call.getBoolean("clear", false)) {
+            trace.clear();
+        }
+        call.resolve(ret);
+    }
+    
+    public void setTraceLevel(PluginCall call) {
+        TraceBuffer.Level level = TraceBuffer.Level.fromName(call.getString("level"));
+        if (level == null) {
+            call.reject("Unknown trace level " + call.getString("level"));
+            return;
+        }
+        trace.setLevel(level);
+        call.resolve();
+    }
+    
+    public void startForegroundService(PluginCall call) {
+        // Android 14+ only lets a connectedDevice service into the foreground with a USB permission granted
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE && !hasAnyUsbPermission()) {
+            call.reject("Cannot start foreground service: no USB permission granted");
+            return;
+        }
+        
+        // Settled by the service once it is in the foreground or has given up
+        ResultReceiver result = new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                if (resultCode == UsbSerialService.RESULT_STARTED) {
+                    call.resolve();
+                } else {
+                    setServiceWakeLock(false);
+                    call.reject("Cannot start foreground service: " + resultData.getString(UsbSerialService.EXTRA_MESSAGE));
+                }
+            }
+        };
+        try {
+            UsbSerialService.start(
+                context,
+                call.getString("title"),
+                call.getString("text"),
+                setServiceWakeLock(call.getBoolean("wakeLock", true)),
+                result
+            );
+        } catch (RuntimeException e) {
+            // Android 12+ refuses to start it while the app is in the background
+            setServiceWakeLock(false);
+            call.reject("Cannot start foreground service: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Records whether the service should keep the CPU awake and returns
+     * whether it should hold the wake lock right now.
+     */
+    private synchronized boolean setServiceWakeLock(boolean requested) {
+        serviceWakeLock = requested;
+        serviceWakeLockHeld = requested && !connections.isEmpty();
+        return serviceWakeLockHeld;
+    }
+    
+    /**
+     * Lets the running service hold its wake lock only while connections are open.
+     */
+    private synchronized void updateServiceWakeLock() {
+        boolean held = serviceWakeLock && !connections.isEmpty();
+        if (held == serviceWakeLockHeld) {
+            return;
+        }
+        serviceWakeLockHeld = held;
+        try {
+            UsbSerialService.setWakeLock(context, held);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cannot update the foreground service wake lock", e);
+        }
+    }
+    
+    private void stopService() {
+        setServiceWakeLock(false);
+        UsbSerialService.stop(context);
+    }
+    
+    private boolean hasAnyUsbPermission() {
+        for (UsbDevice device : usbManager.getDeviceList().values()) {
+            if (permissionManager.hasPermission(device)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public void stopForegroundService(PluginCall call) {
+        stopService();
+        call.resolve();
+    }
+    
+    private static Boolean optBoolean(JSONObject options, String key) {
+        return options.has(key) ? options.optBoolean(key) : null;
     }
     
     public void startListening(PluginCall call) {
-        if (serialPort == null) {
-            call.reject("Not connected");
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
             return;
         }
+        connection.setPushEnabled(true);
         call.resolve();
     }
     
     public void stopListening(PluginCall call) {
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
+        connection.setPushEnabled(false);
         call.resolve();
     }
     
-    @Override
-    public void onNewData(byte[] data) {
-        String dataStr = new String(data, StandardCharsets.UTF_8);
-        String hexStr = bytesToHex(data);
+    public void startRecording(PluginCall call) {
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
         
-        JSObject event = new JSObject();
-        event.put("data", dataStr);
-        event.put("hexData", hexStr);
-        event.put("timestamp", System.currentTimeMillis());
-        if (currentDevice != null) {
-            event.put("deviceId", currentDevice.getDeviceId());
+        String directoryPath = call.getString("directory");
+        File directory = directoryPath != null ? new File(directoryPath) : new File(context.getFilesDir(), "usb-recordings");
+        String name = "session-" + connection.getId().replace(':', '-') + "-" + System.currentTimeMillis();
+        
+        SessionRecorder recorder;
+        try {
+            recorder = connection.startRecording(
+                directory,
+                name,
+                call.getLong("maxFileSize", SessionRecorder.DEFAULT_MAX_FILE_SIZE),
+                call.getInt("maxFiles", SessionRecorder.DEFAULT_MAX_FILES),
+                call.getBoolean("includeTx", true)
+            );
+        } catch (IOException e) {
+            call.reject("Failed to start recording: " + e.getMessage());
+            return;
         }
         
-        plugin.notifyListenersFromImplementation("dataReceived", event);
+        JSObject ret = new JSObject();
+        ret.put("connectionId", connection.getId());
+        ret.put("path", recorder.getFiles().get(0).getAbsolutePath());
+        call.resolve(ret);
     }
     
-    @Override
-    public void onRunError(Exception e) {
-        Log.e(TAG, "Runner error", e);
+    public void stopRecording(PluginCall call) {
+        SerialConnection connection = findConnection(call);
+        if (connection == null) {
+            return;
+        }
         
-        // Notify about the error
-        JSObject errorEvent = new JSObject();
-        errorEvent.put("message", "Serial communication error: " + e.getMessage());
-        plugin.notifyListenersFromImplementation("error", errorEvent);
+        SessionRecorder recorder;
+        try {
+            recorder = connection.stopRecording();
+        } catch (IOException e) {
+            call.reject("Failed to close recording: " + e.getMessage());
+            return;
+        }
+        if (recorder == null) {
+            call.reject("Not recording " + connection.getId());
+            return;
+        }
+        
+        JSArray files = new JSArray();
+        for (File file : recorder.getFiles()) {
+            files.put(file.getAbsolutePath());
+        }
+        JSObject ret = new JSObject();
+        ret.put("files", files);
+        ret.put("records", recorder.getRecords());
+        ret.put("bytes", recorder.getBytesRecorded());
+        if (recorder.getFailure() != null) {
+            ret.put("error", recorder.getFailure().getMessage());
+        }
+        call.resolve(ret);
+    }
+    
+    public void replayRecording(PluginCall call) {
+        JSONArray filesArray = call.getArray("files");
+        if (filesArray == null || filesArray.length() == 0) {
+            call.reject("No files provided");
+            return;
+        }
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < filesArray.length(); i++) {
+            files.add(new File(filesArray.optString(i)));
+        }
+        
+        String connectionId = call.getString("connectionId", "replay");
+        SessionReplay replay = new SessionReplay(
+            plugin,
+            scheduler,
+            connectionId,
+            files,
+            call.getObject("serialOptions", new JSObject()),
+            call.getDouble("speed", 1.0),
+            call,
+            finished -> replays.remove(finished.getConnectionId(), finished)
+        );
+        if (replays.putIfAbsent(connectionId, replay) != null) {
+            call.reject("Already replaying " + connectionId);
+            return;
+        }
+        replay.start();
+    }
+    
+    public void stopReplay(PluginCall call) {
+        String connectionId = call.getString("connectionId", "replay");
+        SessionReplay replay = replays.get(connectionId);
+        if (replay == null) {
+            call.reject("Not replaying " + connectionId);
+            return;
+        }
+        replay.stop();
+        call.resolve();
     }
     
     private JSObject createDeviceInfo(UsbDevice device) {
@@ -467,7 +1178,7 @@ public class UsbSerial implements SerialInputOutputManager.Listener {
         // Only access privileged properties if we have permission
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.LOLLIPOP) {
             try {
-                if (usbManager.hasPermission(device)) {
+                if (permissionManager.hasPermission(device)) {
                     deviceInfo.put("manufacturerName", device.getManufacturerName());
                     deviceInfo.put("serialNumber", device.getSerialNumber());
                 } else {
@@ -483,12 +1194,4 @@ public class UsbSerial implements SerialInputOutputManager.Listener {
         
         return deviceInfo;
     }
-    
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder result = new StringBuilder();
-        for (byte b : bytes) {
-            result.append(String.format("%02X", b));
-        }
-        return result.toString();
-    }
 }
\ No newline at end of file
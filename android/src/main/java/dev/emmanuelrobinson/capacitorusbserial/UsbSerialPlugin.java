@@ -32,6 +32,22 @@ public class UsbSerialPlugin extends Plugin {
         }
     }
     
+    @Override
+    protected void handleOnPause() {
+        if (implementation != null) {
+            implementation.onPause();
+        }
+        super.handleOnPause();
+    }
+    
+    @Override
+    protected void handleOnResume() {
+        if (implementation != null) {
+            implementation.onResume();
+        }
+        super.handleOnResume();
+    }
+    
     @Override
     protected void handleOnDestroy() {
         if (implementation != null) {
@@ -45,6 +61,11 @@ public class UsbSerialPlugin extends Plugin {
         implementation.requestPermission(call);
     }
     
+    @PluginMethod
+    public void requestPermissions(PluginCall call) {
+        implementation.requestPermissions(call);
+    }
+    
     @PluginMethod
     public void listDevices(PluginCall call) {
         implementation.listDevices(call);
@@ -65,6 +86,131 @@ public class UsbSerialPlugin extends Plugin {
         implementation.write(call);
     }
     
+    @PluginMethod
+    public void writeBytes(PluginCall call) {
+        implementation.writeBytes(call);
+    }
+    
+    @PluginMethod
+    public void writeChunks(PluginCall call) {
+        implementation.writeChunks(call);
+    }
+    
+    @PluginMethod
+    public void getStats(PluginCall call) {
+        implementation.getStats(call);
+    }
+    
+    @PluginMethod
+    public void read(PluginCall call) {
+        implementation.read(call);
+    }
+    
+    @PluginMethod
+    public void transact(PluginCall call) {
+        implementation.transact(call);
+    }
+    
+    @PluginMethod
+    public void transactBatch(PluginCall call) {
+        implementation.transactBatch(call);
+    }
+    
+    @PluginMethod
+    public void startRecording(PluginCall call) {
+        implementation.startRecording(call);
+    }
+    
+    @PluginMethod
+    public void stopRecording(PluginCall call) {
+        implementation.stopRecording(call);
+    }
+    
+    @PluginMethod
+    public void replayRecording(PluginCall call) {
+        implementation.replayRecording(call);
+    }
+    
+    @PluginMethod
+    public void stopReplay(PluginCall call) {
+        implementation.stopReplay(call);
+    }
+    
+    @PluginMethod
+    public void setFilter(PluginCall call) {
+        implementation.setFilter(call);
+    }
+    
+    @PluginMethod
+    public void setControlLines(PluginCall call) {
+        implementation.setControlLines(call);
+    }
+    
+    @PluginMethod
+    public void getControlLines(PluginCall call) {
+        implementation.getControlLines(call);
+    }
+    
+    @PluginMethod
+    public void sendBreak(PluginCall call) {
+        implementation.sendBreak(call);
+    }
+    
+    @PluginMethod
+    public void pulseSequence(PluginCall call) {
+        implementation.pulseSequence(call);
+    }
+    
+    @PluginMethod
+    public void purgeHwBuffers(PluginCall call) {
+        implementation.purgeHwBuffers(call);
+    }
+    
+    @PluginMethod
+    public void drain(PluginCall call) {
+        implementation.drain(call);
+    }
+    
+    @PluginMethod
+    public void streamFile(PluginCall call) {
+        implementation.streamFile(call);
+    }
+    
+    @PluginMethod
+    public void cancelStream(PluginCall call) {
+        implementation.cancelStream(call);
+    }
+    
+    @PluginMethod
+    public void startModbusPolling(PluginCall call) {
+        implementation.startModbusPolling(call);
+    }
+    
+    @PluginMethod
+    public void stopModbusPolling(PluginCall call) {
+        implementation.stopModbusPolling(call);
+    }
+    
+    @PluginMethod
+    public void dumpTrace(PluginCall call) {
+        implementation.dumpTrace(call);
+    }
+    
+    @PluginMethod
+    public void setTraceLevel(PluginCall call) {
+        implementation.setTraceLevel(call);
+    }
+    
+    @PluginMethod
+    public void startForegroundService(PluginCall call) {
+        implementation.startForegroundService(call);
+    }
+    
+    @PluginMethod
+    public void stopForegroundService(PluginCall call) {
+        implementation.stopForegroundService(call);
+    }
+    
     @PluginMethod
     public void startListening(PluginCall call) {
         implementation.startListening(call);
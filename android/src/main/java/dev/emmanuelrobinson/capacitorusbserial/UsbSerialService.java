@@ -0,0 +1,189 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.ResultReceiver;
+import android.util.Log;
+
+/**
+ * Foreground service of type connectedDevice that keeps the app process, and
+ * with it the open connections and their reader threads, running at full rate
+ * while the app is in the background. It owns no connections itself; they
+ * stay with the plugin, which spools what they receive until the app resumes.
+ *
+ * startForegroundService() returns before the service runs, so whether it
+ * made it into the foreground is sent back through a {@link ResultReceiver}.
+ * The optional wake lock is only held while the plugin has connections open,
+ * so a service that is never stopped does not keep the CPU awake for nothing.
+ */
+public class UsbSerialService extends Service {
+    private static final String TAG = "UsbSerialService";
+    private static final String CHANNEL_ID = "usb_serial";
+    private static final int NOTIFICATION_ID = 0x5553;
+
+    static final String EXTRA_TITLE = "title";
+    static final String EXTRA_TEXT = "text";
+    static final String EXTRA_WAKE_LOCK = "wakeLock";
+    static final String EXTRA_RESULT = "result";
+    static final String EXTRA_MESSAGE = "message";
+
+    static final String ACTION_WAKE_LOCK = "dev.emmanuelrobinson.capacitorusbserial.WAKE_LOCK";
+
+    static final int RESULT_STARTED = 0;
+    static final int RESULT_FAILED = 1;
+
+    private PowerManager.WakeLock wakeLock;
+    private boolean foreground = false;
+
+    /**
+     * @param result receives RESULT_STARTED, or RESULT_FAILED with EXTRA_MESSAGE,
+     *               once the service has handled the start
+     */
+    public static void start(Context context, String title, String text, boolean wakeLock, ResultReceiver result) {
+        Intent intent = new Intent(context, UsbSerialService.class);
+        intent.putExtra(EXTRA_TITLE, title);
+        intent.putExtra(EXTRA_TEXT, text);
+        intent.putExtra(EXTRA_WAKE_LOCK, wakeLock);
+        intent.putExtra(EXTRA_RESULT, result);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.startForegroundService(intent);
+        } else {
+            context.startService(intent);
+        }
+    }
+
+    /**
+     * Holds or releases the wake lock of the running service.
+     */
+    public static void setWakeLock(Context context, boolean held) {
+        Intent intent = new Intent(context, UsbSerialService.class);
+        intent.setAction(ACTION_WAKE_LOCK);
+        intent.putExtra(EXTRA_WAKE_LOCK, held);
+        context.startService(intent);
+    }
+
+    public static void stop(Context context) {
+        context.stopService(new Intent(context, UsbSerialService.class));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null) {
+            // Restarted without the plugin, there are no connections to keep
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        if (ACTION_WAKE_LOCK.equals(intent.getAction())) {
+            if (!foreground) {
+                // Stopped in the meantime, this intent created a fresh instance
+                stopSelf(startId);
+                return START_NOT_STICKY;
+            }
+            updateWakeLock(intent.getBooleanExtra(EXTRA_WAKE_LOCK, false));
+            return START_NOT_STICKY;
+        }
+
+        ResultReceiver result = intent.getParcelableExtra(EXTRA_RESULT);
+        Notification notification = createNotification(
+            intent.getStringExtra(EXTRA_TITLE),
+            intent.getStringExtra(EXTRA_TEXT)
+        );
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+            } else {
+                startForeground(NOTIFICATION_ID, notification);
+            }
+        } catch (RuntimeException e) {
+            // The plugin checks the preconditions before starting the service, so
+            // this is a last resort: the system still reports the missed startForeground()
+            Log.e(TAG, "Cannot start foreground service", e);
+            sendResult(result, RESULT_FAILED, e.getMessage());
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+
+        foreground = true;
+        updateWakeLock(intent.getBooleanExtra(EXTRA_WAKE_LOCK, false));
+        sendResult(result, RESULT_STARTED, null);
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        releaseWakeLock();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private static void sendResult(ResultReceiver result, int code, String message) {
+        if (result == null) {
+            return;
+        }
+        Bundle data = new Bundle();
+        data.putString(EXTRA_MESSAGE, message);
+        result.send(code, data);
+    }
+
+    private void updateWakeLock(boolean held) {
+        if (held && wakeLock == null) {
+            PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "UsbSerial:acquisition");
+            wakeLock.acquire();
+        } else if (!held && wakeLock != null) {
+            releaseWakeLock();
+        }
+    }
+
+    private void releaseWakeLock() {
+        if (wakeLock != null) {
+            if (wakeLock.isHeld()) {
+                wakeLock.release();
+            }
+            wakeLock = null;
+        }
+    }
+
+    private Notification createNotification(String title, String text) {
+        if (title == null) {
+            title = getApplicationInfo().loadLabel(getPackageManager()).toString();
+        }
+        if (text == null) {
+            text = "Connected to USB serial device";
+        }
+
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager notificationManager = getSystemService(NotificationManager.class);
+            notificationManager.createNotificationChannel(
+                new NotificationChannel(CHANNEL_ID, "USB serial", NotificationManager.IMPORTANCE_LOW)
+            );
+            builder = new Notification.Builder(this, CHANNEL_ID);
+        } else {
+            builder = new Notification.Builder(this);
+        }
+
+        builder.setContentTitle(title).setContentText(text).setSmallIcon(getApplicationInfo().icon).setOngoing(true);
+
+        // Tapping the notification brings the app back
+        Intent launchIntent = getPackageManager().getLaunchIntentForPackage(getPackageName());
+        if (launchIntent != null) {
+            builder.setContentIntent(PendingIntent.getActivity(this, 0, launchIntent, PendingIntent.FLAG_IMMUTABLE));
+        }
+        return builder.build();
+    }
+}
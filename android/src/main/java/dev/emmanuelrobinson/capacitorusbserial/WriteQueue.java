@@ -0,0 +1,152 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded queue of port operations drained by a dedicated writer thread, so
+ * a slow device never blocks the plugin call thread.
+ *
+ * Back-pressure is reported through the listener with hysteresis: congestion
+ * is signalled once the queue reaches three quarters of its capacity and
+ * cleared once it has drained below one quarter.
+ *
+ * While paused, e.g. while the device is detached, tasks keep queuing and
+ * run in order once the queue is resumed.
+ */
+public class WriteQueue {
+
+    /**
+     * Unit of work executed on the writer thread. {@link #complete} is called
+     * exactly once, with null on success, on the writer thread or, for tasks
+     * that never ran, on the thread that closed the queue.
+     */
+    public abstract static class Task {
+
+        protected abstract void execute() throws IOException;
+
+        protected abstract void complete(Exception error);
+    }
+
+    public interface Listener {
+        void onBackpressure(boolean congested, int queued, int capacity);
+    }
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final BlockingQueue<Task> queue;
+    private final int capacity;
+    private final Listener listener;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private boolean congested = false;
+    private boolean paused = false;
+
+    public WriteQueue(String name, int capacity, Listener listener) {
+        this.capacity = Math.max(1, capacity);
+        this.queue = new ArrayBlockingQueue<>(this.capacity);
+        this.listener = listener;
+        this.thread = new Thread(this::drain, name);
+        this.thread.start();
+    }
+
+    /**
+     * Queues a task. Returns false without queuing when the queue is full or
+     * closed, in which case the caller still owns the task.
+     */
+    public synchronized boolean offer(Task task) {
+        if (!running || !queue.offer(task)) {
+            return false;
+        }
+        updateBackpressure();
+        return true;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Holds tasks in the queue until {@link #resume()}. A task already
+     * executing is not affected.
+     */
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    public synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    /**
+     * Stops the writer thread and fails every task still waiting. Those tasks
+     * complete on the calling thread, after the queue's lock is released.
+     */
+    public void close() {
+        List<Task> pending = new ArrayList<>();
+        synchronized (this) {
+            running = false;
+            thread.interrupt();
+            queue.drainTo(pending);
+        }
+
+        for (Task task : pending) {
+            task.complete(new IOException("Connection closed"));
+        }
+    }
+
+    private void drain() {
+        while (running) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            try {
+                // The task may have been taken just before the queue was paused
+                awaitResumed();
+            } catch (InterruptedException e) {
+                task.complete(new IOException("Connection closed"));
+                break;
+            }
+
+            updateBackpressure();
+            try {
+                task.execute();
+                task.complete(null);
+            } catch (Exception e) {
+                task.complete(e);
+            }
+        }
+    }
+
+    private synchronized void awaitResumed() throws InterruptedException {
+        while (paused && running) {
+            wait();
+        }
+        if (!running) {
+            throw new InterruptedException();
+        }
+    }
+
+    private synchronized void updateBackpressure() {
+        int queued = queue.size();
+        if (!congested && queued >= capacity - capacity / 4) {
+            congested = true;
+            listener.onBackpressure(true, queued, capacity);
+        } else if (congested && queued <= capacity / 4) {
+            congested = false;
+            listener.onBackpressure(false, queued, capacity);
+        }
+    }
+}
@@ -0,0 +1,717 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+/**
+ * Drives the receive and transmit path on the host through a loopback port.
+ */
+public class DataPathTest {
+
+    private static class RecordingSink implements ReceivePipeline.Sink {
+        final List<String> data = new ArrayList<>();
+        final List<String> frames = new ArrayList<>();
+        int buffered = 0;
+
+        @Override
+        public void onData(byte[] bytes, int length) {
+            data.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void onFrame(byte[] frame, int length) {
+            frames.add(new String(frame, 0, length, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void onBuffered() {
+            buffered++;
+        }
+    }
+
+    private static ReceivePipeline createPipeline(RecordingSink sink, int bufferSize, ReceiveBuffer.OverflowPolicy policy) {
+        return new ReceivePipeline(sink, new ConnectionStats(), new ReceiveBuffer(bufferSize, policy));
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void rawPacketsAreDeliveredAsRead() {
+        RecordingSink sink = new RecordingSink();
+        ReceivePipeline pipeline = createPipeline(sink, 64, ReceiveBuffer.OverflowPolicy.DROP_OLDEST);
+        LoopbackPort port = new LoopbackPort(pipeline, 4, false);
+
+        port.write(utf8("hello world"), 0, 11, 0);
+
+        assertEquals(Arrays.asList("hell", "o wo", "rld"), sink.data);
+        assertEquals(3, pipeline.getStats().getReads());
+        assertEquals(11, pipeline.getStats().getBytesIn());
+        assertEquals(3, pipeline.getStats().getEventsEmitted());
+    }
+
+    @Test
+    public void delimiterFramesSpanPackets() {
+        RecordingSink sink = new RecordingSink();
+        ReceivePipeline pipeline = createPipeline(sink, 64, ReceiveBuffer.OverflowPolicy.DROP_OLDEST);
+        pipeline.setFramer(Framer.delimiter(utf8("\r\n"), false, Framer.DEFAULT_MAX_FRAME_SIZE));
+        LoopbackPort port = new LoopbackPort(pipeline, 3, true);
+
+        port.write(utf8("$GPGGA,1\r\n$GPRMC,2\r\n$GP"), 0, 23, 0);
+
+        assertEquals(Arrays.asList("$GPGGA,1", "$GPRMC,2"), sink.frames);
+        assertTrue(sink.data.isEmpty());
+    }
+
+    @Test
+    public void batchingCoalescesPacketsUntilDelimiter() {
+        RecordingSink sink = new RecordingSink();
+        ReceivePipeline pipeline = createPipeline(sink, 64, ReceiveBuffer.OverflowPolicy.DROP_OLDEST);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        pipeline.setBatching(1024, 60000, utf8("\n"), scheduler);
+        LoopbackPort port = new LoopbackPort(pipeline, 2, false);
+
+        port.write(utf8("abc\ndef"), 0, 7, 0);
+        assertEquals(Arrays.asList("abc\n"), sink.data);
+
+        pipeline.close();
+        scheduler.shutdownNow();
+        assertEquals(Arrays.asList("abc\n", "def"), sink.data);
+    }
+
+    @Test
+    public void pullModeBuffersAndDropsOldest() {
+        RecordingSink sink = new RecordingSink();
+        ReceivePipeline pipeline = createPipeline(sink, 8, ReceiveBuffer.OverflowPolicy.DROP_OLDEST);
+        pipeline.setPushEnabled(false);
+        LoopbackPort port = new LoopbackPort(pipeline, 5, false);
+
+        port.write(utf8("0123456789"), 0, 10, 0);
+
+        byte[] out = new byte[16];
+        int n = pipeline.getReceiveBuffer().read(out, 0, out.length);
+        assertEquals("23456789", new String(out, 0, n, StandardCharsets.UTF_8));
+        assertEquals(2, pipeline.getStats().getDroppedBytes());
+        assertEquals(2, sink.buffered);
+        assertTrue(sink.data.isEmpty());
+    }
+
+    @Test
+    public void switchingToPushDeliversBufferedBytesFirst() {
+        RecordingSink sink = new RecordingSink();
+        ReceivePipeline pipeline = createPipeline(sink, 64, ReceiveBuffer.OverflowPolicy.DROP_OLDEST);
+        pipeline.setFramer(Framer.delimiter(utf8("\n"), false, Framer.DEFAULT_MAX_FRAME_SIZE));
+        pipeline.setPushEnabled(false);
+        LoopbackPort port = new LoopbackPort(pipeline, 4, false);
+
+        port.write(utf8("ping\npo"), 0, 7, 0);
+        assertTrue(sink.frames.isEmpty());
+
+        pipeline.setPushEnabled(true);
+        assertEquals(Arrays.asList("ping"), sink.frames);
+        assertEquals(0, pipeline.getReceiveBuffer().size());
+
+        port.write(utf8("ng\n"), 0, 3, 0);
+        assertEquals(Arrays.asList("ping", "pong"), sink.frames);
+    }
+
+    @Test
+    public void pullModeDropsNewest() {
+        RecordingSink sink = new RecordingSink();
+        ReceivePipeline pipeline = createPipeline(sink, 8, ReceiveBuffer.OverflowPolicy.DROP_NEWEST);
+        pipeline.setPushEnabled(false);
+        LoopbackPort port = new LoopbackPort(pipeline, 5, false);
+
+        port.write(utf8("0123456789"), 0, 10, 0);
+
+        byte[] out = new byte[16];
+        int n = pipeline.getReceiveBuffer().read(out, 0, out.length);
+        assertEquals("01234567", new String(out, 0, n, StandardCharsets.UTF_8));
+        assertEquals(2, pipeline.getStats().getDroppedBytes());
+    }
+
+    @Test
+    public void transmitterSlicesWritesAndLoopsBack() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        ReceivePipeline pipeline = createPipeline(sink, 64, ReceiveBuffer.OverflowPolicy.DROP_OLDEST);
+        pipeline.setFramer(Framer.delimiter(utf8("\n"), false, Framer.DEFAULT_MAX_FRAME_SIZE));
+        LoopbackPort port = new LoopbackPort(pipeline, 64, false);
+
+        AtomicInteger slices = new AtomicInteger();
+        SerialTransport counting = (data, offset, length, timeout) -> {
+            slices.incrementAndGet();
+            port.write(data, offset, length, timeout);
+        };
+        Transmitter transmitter = new Transmitter("test-writer", counting, 4, 4, pipeline.getStats(), (congested, queued, capacity) -> {});
+
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger written = new AtomicInteger();
+        byte[][] chunks = { utf8("ping\npo"), utf8("ng\n") };
+        assertTrue(transmitter.write(chunks, 100, (bytesWritten, error) -> {
+            assertNull(error);
+            written.set(bytesWritten);
+            done.countDown();
+        }));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        transmitter.close();
+
+        assertEquals(10, written.get());
+        assertEquals(3, slices.get());
+        assertEquals(Arrays.asList("ping", "pong"), sink.frames);
+        assertEquals(1, pipeline.getStats().getWrites());
+        assertEquals(10, pipeline.getStats().getBytesOut());
+    }
+
+    @Test
+    public void writesRacingCloseCompleteExactlyOnce() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        ReceivePipeline pipeline = createPipeline(sink, 64, ReceiveBuffer.OverflowPolicy.DROP_OLDEST);
+        LoopbackPort port = new LoopbackPort(pipeline, 64, false);
+        Transmitter transmitter = new Transmitter("test-writer", port, 8, 0, pipeline.getStats(), (congested, queued, capacity) -> {});
+
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(50);
+        Thread writer = new Thread(() -> {
+            byte[][] chunks = { utf8("0123456789") };
+            for (int i = 0; i < 5000; i++) {
+                boolean queued = transmitter.write(chunks, 100, (bytesWritten, error) -> {
+                    (error == null ? succeeded : failed).incrementAndGet();
+                    started.countDown();
+                });
+                if (queued) {
+                    accepted.incrementAndGet();
+                } else if (accepted.get() < 50) {
+                    // Queue full before close can be reached, let the writer thread catch up
+                    Thread.yield();
+                    i--;
+                }
+            }
+        });
+        writer.start();
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        transmitter.close();
+        writer.join();
+        assertFalse(transmitter.write(new byte[][] { utf8("late") }, 100, (bytesWritten, error) -> fail()));
+
+        // The write executing during close may still be finishing
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (succeeded.get() + failed.get() < accepted.get() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(accepted.get(), succeeded.get() + failed.get());
+        assertEquals(succeeded.get() * 10L, port.getBytesWritten());
+        assertEquals(succeeded.get() * 10L, pipeline.getStats().getBytesIn());
+        assertEquals(succeeded.get(), pipeline.getStats().getWrites());
+    }
+
+    @Test
+    public void connectionStatesFollowTheLifecycle() {
+        Map<ConnectionState, EnumSet<ConnectionState>> allowed = new EnumMap<>(ConnectionState.class);
+        allowed.put(ConnectionState.CONNECTING, EnumSet.of(ConnectionState.OPEN, ConnectionState.CLOSING));
+        allowed.put(ConnectionState.OPEN, EnumSet.of(ConnectionState.SUSPENDED, ConnectionState.DRAINING, ConnectionState.CLOSING));
+        allowed.put(ConnectionState.SUSPENDED, EnumSet.of(ConnectionState.OPEN, ConnectionState.DRAINING, ConnectionState.CLOSING));
+        allowed.put(ConnectionState.DRAINING, EnumSet.of(ConnectionState.CLOSING));
+        allowed.put(ConnectionState.CLOSING, EnumSet.of(ConnectionState.CLOSED));
+        allowed.put(ConnectionState.CLOSED, EnumSet.noneOf(ConnectionState.class));
+
+        for (ConnectionState from : ConnectionState.values()) {
+            for (ConnectionState to : ConnectionState.values()) {
+                assertEquals(from + " -> " + to, allowed.get(from).contains(to), from.canTransitionTo(to));
+            }
+        }
+
+        // A suspended session queues writes for the device to return, a draining one takes no more
+        assertEquals(
+            EnumSet.of(ConnectionState.OPEN, ConnectionState.SUSPENDED),
+            EnumSet.copyOf(Arrays.stream(ConnectionState.values()).filter(ConnectionState::acceptsWrites).collect(Collectors.toList()))
+        );
+        assertTrue(ConnectionState.DRAINING.isReceiving());
+        assertFalse(ConnectionState.CLOSING.isReceiving());
+    }
+
+    @Test
+    public void transactionTakesResponseAndPassesTheRestOn() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        ReceivePipeline pipeline = createPipeline(sink, 64, ReceiveBuffer.OverflowPolicy.DROP_OLDEST);
+        LoopbackPort port = new LoopbackPort(pipeline, 4, false);
+
+        Transaction transaction = new Transaction(utf8("AT\r"), utf8("OK\r\n"), 0, 1000, 64);
+        transaction.start();
+        pipeline.setTransaction(transaction);
+        port.write(utf8("AT\rOK\r\n+URC"), 0, 11, 0);
+
+        assertEquals(Transaction.Status.OK, transaction.await());
+        assertEquals("AT\rOK\r\n", new String(transaction.getResponse(), 0, transaction.getLength(), StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("+", "URC"), sink.data);
+    }
+
+    @Test
+    public void transactionMatchesExpectedLengthOrTimesOut() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        ReceivePipeline pipeline = createPipeline(sink, 64, ReceiveBuffer.OverflowPolicy.DROP_OLDEST);
+        LoopbackPort port = new LoopbackPort(pipeline, 3, false);
+
+        Transaction complete = new Transaction(new byte[] { 1 }, null, 5, 1000, 0);
+        complete.start();
+        pipeline.setTransaction(complete);
+        port.write(utf8("abcdefg"), 0, 7, 0);
+        assertEquals(Transaction.Status.OK, complete.await());
+        assertEquals(5, complete.getLength());
+        assertEquals(Arrays.asList("f", "g"), sink.data);
+
+        Transaction partial = new Transaction(new byte[] { 1 }, null, 5, 20, 0);
+        partial.start();
+        pipeline.setTransaction(partial);
+        port.write(utf8("ab"), 0, 2, 0);
+        assertEquals(Transaction.Status.TIMEOUT, partial.await());
+        assertEquals(2, partial.getLength());
+    }
+
+    @Test
+    public void filterMatchesDecimatesAndSamples() {
+        RecordingSink sink = new RecordingSink();
+        ReceivePipeline pipeline = createPipeline(sink, 64, ReceiveBuffer.OverflowPolicy.DROP_OLDEST);
+        pipeline.setFramer(Framer.delimiter(utf8("\n"), false, Framer.DEFAULT_MAX_FRAME_SIZE));
+        pipeline.setFilter(new DeliveryFilter(new byte[][] { utf8("$A") }, true, 2, 0, 0, null, pipeline::deliver));
+        LoopbackPort port = new LoopbackPort(pipeline, 8, false);
+
+        byte[] lines = utf8("$A,1\n$B,2\n$A,3\n$A,4\nx$A,5\n$A,6\n");
+        port.write(lines, 0, lines.length, 0);
+        assertEquals(Arrays.asList("$A,1", "$A,4"), sink.frames);
+        assertEquals(4, pipeline.getFilteredEvents());
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        pipeline.setFilter(new DeliveryFilter(null, true, 1, 0, 60000, scheduler, pipeline::deliver));
+        port.write(utf8("$A,7\n$A,8\n"), 0, 10, 0);
+        pipeline.close();
+        scheduler.shutdownNow();
+        assertEquals(Arrays.asList("$A,1", "$A,4", "$A,8"), sink.frames);
+    }
+
+    @Test
+    public void pulseSequenceTogglesLinesOnSchedule() throws Exception {
+        List<String> toggles = new ArrayList<>();
+        PulseSequence.Lines lines = new PulseSequence.Lines() {
+            @Override
+            public void setDtr(boolean value) {
+                toggles.add("dtr=" + value);
+            }
+
+            @Override
+            public void setRts(boolean value) {
+                toggles.add("rts=" + value);
+            }
+
+            @Override
+            public void setBreak(boolean value) {
+                toggles.add("break=" + value);
+            }
+        };
+
+        // Typical ESP32 bootloader entry
+        PulseSequence sequence = new PulseSequence()
+            .add(false, true, null, 100)
+            .add(true, false, null, 50)
+            .add(false, null, null, 0);
+        long elapsed = sequence.run(lines);
+        assertEquals(Arrays.asList("dtr=false", "rts=true", "dtr=true", "rts=false", "dtr=false"), toggles);
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(150));
+
+        toggles.clear();
+        PulseSequence.breakSignal(0).run(lines);
+        assertEquals(Arrays.asList("break=true", "break=false"), toggles);
+    }
+
+    @Test
+    public void fileStreamsInAcknowledgedChunks() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        ReceivePipeline pipeline = createPipeline(sink, 64, ReceiveBuffer.OverflowPolicy.DROP_OLDEST);
+
+        byte[] image = new byte[10000];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) i;
+        }
+        File file = File.createTempFile("image", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), image);
+
+        // The device answers every chunk with a status line ending in ACK
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        List<Integer> chunkSizes = new ArrayList<>();
+        SerialTransport device = (data, offset, length, timeout) -> {
+            received.write(data, offset, length);
+            chunkSizes.add(length);
+            byte[] reply = utf8("ok\u0006");
+            pipeline.onData(reply, 0, reply.length);
+        };
+        AtomicInteger progressEvents = new AtomicInteger();
+        FileStreamer streamer = new FileStreamer(file, 4096, 0, new byte[] { 6 }, 1000, 0, s -> progressEvents.incrementAndGet());
+        streamer.run(device, 1000, pipeline);
+
+        assertArrayEquals(image, received.toByteArray());
+        assertEquals(Arrays.asList(4096, 4096, 1808), chunkSizes);
+        assertEquals(3, streamer.getChunks());
+        assertEquals(4, progressEvents.get());
+        assertTrue(sink.data.isEmpty());
+
+        // Without an answer the stream fails on the first chunk
+        FileStreamer unanswered = new FileStreamer(file, 4096, 0, new byte[] { 6 }, 20, 0, s -> { });
+        try {
+            unanswered.run((data, offset, length, timeout) -> { }, 1000, pipeline);
+            fail("Expected the missing acknowledgement to fail the stream");
+        } catch (IOException e) {
+            assertEquals(4096, unanswered.getBytesSent());
+        }
+    }
+
+    @Test
+    public void modbusMasterReportsOnlyChanges() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        ReceivePipeline pipeline = createPipeline(sink, 64, ReceiveBuffer.OverflowPolicy.DROP_OLDEST);
+
+        // Holding registers of slave 1; the reply arrives split over two reads
+        int[] registers = { 10, 20, 30, 40 };
+        SerialTransport slave = (data, offset, length, timeout) -> {
+            int address = (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+            int count = (data[offset + 4] & 0xFF) << 8 | (data[offset + 5] & 0xFF);
+            byte[] reply = new byte[ModbusRtu.readResponseLength(ModbusRtu.READ_HOLDING_REGISTERS, count)];
+            reply[0] = 1;
+            reply[1] = ModbusRtu.READ_HOLDING_REGISTERS;
+            reply[2] = (byte) (count * 2);
+            for (int i = 0; i < count; i++) {
+                reply[3 + i * 2] = (byte) (registers[address + i] >> 8);
+                reply[4 + i * 2] = (byte) registers[address + i];
+            }
+            int crc = ModbusRtu.crc16(reply, 0, reply.length - 2);
+            reply[reply.length - 2] = (byte) crc;
+            reply[reply.length - 1] = (byte) (crc >> 8);
+            pipeline.onData(reply, 0, 4);
+            pipeline.onData(reply, 4, reply.length - 4);
+        };
+        Transmitter transmitter = new Transmitter("test-writer", slave, 8, 0, pipeline.getStats(), (congested, queued, capacity) -> {});
+
+        BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        ModbusMaster.Listener listener = new ModbusMaster.Listener() {
+            @Override
+            public void onRegistersChanged(ModbusMaster.PollGroup group, int[] values, int[] changed) {
+                events.add(Arrays.toString(values) + " " + Arrays.toString(changed));
+            }
+
+            @Override
+            public void onPollFailed(ModbusMaster.PollGroup group, String message) {
+                events.add(message);
+            }
+        };
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        List<ModbusMaster.PollGroup> groups = Arrays.asList(
+            new ModbusMaster.PollGroup("a", 1, ModbusRtu.READ_HOLDING_REGISTERS, 1, 3, 5)
+        );
+        ModbusMaster master = new ModbusMaster(groups, transmitter, pipeline, pipeline.getStats(), scheduler, 115200, 200, listener);
+        master.start();
+
+        assertEquals("[20, 30, 40] [0, 1, 2]", events.poll(5, TimeUnit.SECONDS));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (master.getPolls() < 5 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        // Unchanged polls emit nothing
+        assertTrue(events.isEmpty());
+        registers[2] = 31;
+        assertEquals("[20, 31, 40] [1]", events.poll(5, TimeUnit.SECONDS));
+        master.stop();
+        scheduler.shutdownNow();
+        transmitter.close();
+
+        assertTrue(master.getPolls() >= 6);
+        assertEquals(2, master.getChanges());
+        assertEquals(0, master.getFailures());
+        assertTrue(sink.data.isEmpty());
+
+        byte[] exception = { 1, (byte) 0x83, 2, 0, 0 };
+        int crc = ModbusRtu.crc16(exception, 0, 3);
+        exception[3] = (byte) crc;
+        exception[4] = (byte) (crc >> 8);
+        try {
+            ModbusRtu.decodeReadResponse(exception, 5, 1, ModbusRtu.READ_HOLDING_REGISTERS, 3);
+            fail("Expected the exception response to be reported");
+        } catch (IOException e) {
+            assertEquals("Exception 2 from slave 1", e.getMessage());
+        }
+        // Reference frame from the specification: read 3 registers at 0x006B of slave 17
+        assertArrayEquals(
+            new byte[] { 0x11, 0x03, 0x00, 0x6B, 0x00, 0x03, 0x76, (byte) 0x87 },
+            ModbusRtu.readRequest(17, ModbusRtu.READ_HOLDING_REGISTERS, 0x6B, 3)
+        );
+    }
+
+    @Test
+    public void encoderRoundTrips() {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        assertArrayEquals(data, DataEncoder.fromBase64(DataEncoder.toBase64(data, 0, data.length)));
+        assertEquals("00017F80FF", DataEncoder.toHex(new byte[] { 0, 1, 0x7f, (byte) 0x80, (byte) 0xff }, 0, 5));
+        assertEquals("h\u00e9llo", DataEncoder.toUtf8(utf8("h\u00e9llo"), 0, 6));
+
+        // Unknown names are left to the caller to reject
+        assertEquals(DataEncoder.Encoding.UTF8_HEX, DataEncoder.Encoding.fromName("utf8+hex"));
+        assertNull(DataEncoder.Encoding.fromName("utf16"));
+        assertEquals(ReceiveBuffer.OverflowPolicy.BLOCK, ReceiveBuffer.OverflowPolicy.fromName("block"));
+        assertNull(ReceiveBuffer.OverflowPolicy.fromName("dropAll"));
+    }
+
+    @Test
+    public void packetSizeFollowsBaudRate() {
+        assertEquals(15, LoopbackPort.packetSizeForBaud(9600, 16384));
+        assertEquals(184, LoopbackPort.packetSizeForBaud(115200, 16384));
+        assertEquals(4096, LoopbackPort.packetSizeForBaud(3000000, 4096));
+    }
+
+    @Test
+    public void oversizedDelimitedLinesAreDropped() {
+        for (boolean includeDelimiter : new boolean[] { false, true }) {
+            RecordingSink sink = new RecordingSink();
+            ReceivePipeline pipeline = createPipeline(sink, 64, ReceiveBuffer.OverflowPolicy.DROP_OLDEST);
+            pipeline.setFramer(Framer.delimiter(utf8("\n"), includeDelimiter, 4));
+            LoopbackPort port = new LoopbackPort(pipeline, 16, false);
+
+            port.write(utf8("abcde\nabcd\n"), 0, 11, 0);
+
+            assertEquals(Arrays.asList(includeDelimiter ? "abcd\n" : "abcd"), sink.frames);
+            assertEquals(6, pipeline.getDiscardedBytes());
+        }
+    }
+
+    @Test
+    public void readPathStaysWithinAllocationBudget() throws Exception {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        // Two 32 byte frames per read, each encoded to a 64 char hex String
+        byte[] packet = new byte[64];
+        Arrays.fill(packet, (byte) 'x');
+        packet[31] = '\n';
+        packet[63] = '\n';
+        int warmupReads = 20_000;
+        int measuredReads = 20_000;
+        // The hex String (24 byte object, 16 + 64 byte array) plus slack
+        long budgetPerEvent = 128;
+
+        long[] encodedChars = new long[1];
+        long[] events = new long[1];
+        ReceivePipeline pipeline = new ReceivePipeline(new ReceivePipeline.Sink() {
+            @Override
+            public void onData(byte[] data, int length) {
+                fail("Unframed data");
+            }
+
+            @Override
+            public void onFrame(byte[] frame, int length) {
+                encodedChars[0] += DataEncoder.toHex(frame, 0, length).length();
+                events[0]++;
+            }
+
+            @Override
+            public void onBuffered() {
+            }
+        }, new ConnectionStats(), new ReceiveBuffer(1024, ReceiveBuffer.OverflowPolicy.DROP_OLDEST));
+        pipeline.setFramer(Framer.delimiter(utf8("\n"), true, Framer.DEFAULT_MAX_FRAME_SIZE));
+
+        long[] allocated = new long[1];
+        long[] measuredEvents = new long[1];
+        AtomicReference<Exception> error = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        ReadLoop[] loop = new ReadLoop[1];
+        int[] reads = new int[1];
+        loop[0] = new ReadLoop((buffer, timeout) -> {
+            // Runs on the reader thread, which is the one being measured
+            long threadId = Thread.currentThread().getId();
+            if (reads[0] == warmupReads) {
+                measuredEvents[0] = events[0];
+                allocated[0] = threads.getThreadAllocatedBytes(threadId);
+            } else if (reads[0] == warmupReads + measuredReads) {
+                allocated[0] = threads.getThreadAllocatedBytes(threadId) - allocated[0];
+                measuredEvents[0] = events[0] - measuredEvents[0];
+                loop[0].stop();
+                done.countDown();
+                return 0;
+            }
+            reads[0]++;
+            System.arraycopy(packet, 0, buffer, 0, packet.length);
+            return packet.length;
+        }, packet.length, 0, null, new ReadLoop.Listener() {
+            @Override
+            public void onRead(byte[] data, int length) {
+                pipeline.onData(data, 0, length);
+            }
+
+            @Override
+            public void onReadError(Exception e) {
+                error.set(e);
+                done.countDown();
+            }
+        });
+        loop[0].start("allocation-budget");
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertNull(error.get());
+        assertEquals(2L * measuredReads, measuredEvents[0]);
+        assertEquals(64L * (warmupReads + measuredReads) * 2, encodedChars[0]);
+        long perEvent = allocated[0] / measuredEvents[0];
+        assertTrue("Allocated " + perEvent + " bytes per event", perEvent <= budgetPerEvent);
+    }
+
+    @Test
+    public void spoolReturnsBacklogInBatches() {
+        ConnectionStats stats = new ConnectionStats();
+        ReceiveSpool spool = new ReceiveSpool(60, 8, stats);
+        byte[] abc = "abc".getBytes(StandardCharsets.US_ASCII);
+        assertFalse(spool.offer(ReceiveSpool.DATA, abc, 3, 1));
+
+        spool.pause();
+        // 13 byte header each: the fourth unit drops the first
+        assertTrue(spool.offer(ReceiveSpool.DATA, abc, 3, 1));
+        assertTrue(spool.offer(ReceiveSpool.DATA, "def".getBytes(StandardCharsets.US_ASCII), 3, 2));
+        assertTrue(spool.offer(ReceiveSpool.FRAME, "F1".getBytes(StandardCharsets.US_ASCII), 2, 3));
+        assertTrue(spool.offer(ReceiveSpool.FRAME, "F2".getBytes(StandardCharsets.US_ASCII), 2, 4));
+        assertEquals(3, spool.size());
+        assertEquals(3, stats.getDroppedBytes());
+
+        List<String> batches = new ArrayList<>();
+        spool.resume(new ReceiveSpool.Sink() {
+            @Override
+            public void onData(byte[] data, int length, long timestamp) {
+                batches.add(timestamp + ":" + new String(data, 0, length, StandardCharsets.US_ASCII));
+                if (timestamp == 2) {
+                    // Arrives while the backlog is being delivered, queued behind it
+                    assertTrue(spool.offer(ReceiveSpool.DATA, abc, 3, 5));
+                }
+            }
+
+            @Override
+            public void onFrames(byte[][] frames, long[] timestamps, int count) {
+                for (int i = 0; i < count; i++) {
+                    batches.add(timestamps[i] + "=" + new String(frames[i], StandardCharsets.US_ASCII));
+                }
+            }
+        });
+        assertEquals(Arrays.asList("2:def", "3=F1", "4=F2", "5:abc"), batches);
+        assertFalse(spool.isSpooling());
+        assertEquals(0, spool.size());
+    }
+
+    @Test
+    public void recordingRotatesAndSurvivesTornTail() throws Exception {
+        File directory = Files.createTempDirectory("recording").toFile();
+        // Room for two five byte records per file, keeping the two newest files
+        long maxFileSize = SessionRecorder.HEADER_SIZE + 2 * (SessionRecorder.RECORD_HEADER_SIZE + 5);
+        SessionRecorder recorder = new SessionRecorder(directory, "session", maxFileSize, 2, 0x0403, 0x6001, 1);
+        try {
+            recorder.record(SessionRecorder.RX, utf8("aaaaa"), 0, 5);
+            recorder.record(SessionRecorder.TX, utf8("bbbbb"), 0, 5);
+            recorder.record(SessionRecorder.RX, new byte[0], 0, 0);
+            recorder.record(SessionRecorder.RX, utf8("xcccccx"), 1, 5);
+            recorder.record(SessionRecorder.TX, utf8("ddddd"), 0, 5);
+            recorder.record(SessionRecorder.RX, utf8("eeeee"), 0, 5);
+            assertEquals(5, recorder.getRecords());
+            assertEquals(25, recorder.getBytesRecorded());
+
+            List<File> files = recorder.getFiles();
+            assertEquals(2, files.size());
+            assertFalse(new File(directory, "session-0" + SessionRecorder.EXTENSION).exists());
+
+            // The newest file is still open: its mapped tail is zeros
+            assertEquals(Arrays.asList("RX:ccccc", "TX:ddddd", "RX:eeeee"), readRecording(files));
+            SessionReader reader = new SessionReader(files);
+            assertEquals(0x0403, reader.getVendorId());
+            assertEquals(0x6001, reader.getProductId());
+            assertEquals(1, reader.getPortNumber());
+
+            // Cut the last record short, as a crash while writing would
+            recorder.close();
+            File newest = files.get(1);
+            assertEquals(SessionRecorder.HEADER_SIZE + SessionRecorder.RECORD_HEADER_SIZE + 5, newest.length());
+            try (RandomAccessFile file = new RandomAccessFile(newest, "rw")) {
+                file.setLength(newest.length() - 2);
+            }
+            assertEquals(Arrays.asList("RX:ccccc", "TX:ddddd"), readRecording(files));
+        } finally {
+            recorder.close();
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static List<String> readRecording(List<File> files) throws IOException {
+        List<String> records = new ArrayList<>();
+        SessionReader reader = new SessionReader(files);
+        long previous = -1;
+        while (reader.next()) {
+            assertTrue(reader.getTimestampNanos() >= previous);
+            previous = reader.getTimestampNanos();
+            String direction = reader.getDirection() == SessionRecorder.TX ? "TX" : "RX";
+            records.add(direction + ":" + new String(reader.getData(), 0, reader.getLength(), StandardCharsets.UTF_8));
+        }
+        return records;
+    }
+
+    @Test
+    public void traceKeepsNewestRecordsAtLevel() {
+        TraceBuffer trace = new TraceBuffer(3, TraceBuffer.Level.INFO);
+        assertEquals(4, trace.capacity());
+
+        trace.trace(TraceBuffer.Event.READ, 1, 10);
+        assertEquals(0, trace.written());
+        for (int i = 0; i < 6; i++) {
+            trace.trace(TraceBuffer.Event.STATE, 0x123456, -i);
+        }
+
+        List<Integer> values = new ArrayList<>();
+        int visited = trace.dump((timestampNanos, event, deviceId, value) -> {
+            assertEquals(TraceBuffer.Event.STATE, event);
+            assertEquals(0x123456, deviceId);
+            values.add(value);
+        });
+        assertEquals(4, visited);
+        assertEquals(Arrays.asList(-2, -3, -4, -5), values);
+        assertEquals(6, trace.written());
+
+        trace.clear();
+        assertEquals(0, trace.dump((timestampNanos, event, deviceId, value) -> fail()));
+    }
+}
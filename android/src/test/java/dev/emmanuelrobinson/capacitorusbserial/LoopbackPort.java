@@ -0,0 +1,52 @@
+package dev.emmanuelrobinson.capacitorusbserial;
+
+import java.util.Arrays;
+
+/**
+ * Simulated port with TX wired to RX. Written bytes come back through the
+ * receive pipeline in packets of at most {@code packetSize} bytes, the way a
+ * bulk IN endpoint hands them to the reader thread.
+ */
+public class LoopbackPort implements SerialTransport {
+
+    /**
+     * Bytes accumulated per read at a given baud rate, assuming 10 bits per
+     * byte and the 16 ms latency timer most bridge chips default to.
+     */
+    public static int packetSizeForBaud(int baudRate, int readBufferSize) {
+        int bytesPerLatencyTimer = baudRate / 10 * 16 / 1000;
+        return Math.max(1, Math.min(bytesPerLatencyTimer, readBufferSize));
+    }
+
+    private final ReceivePipeline pipeline;
+    private final int packetSize;
+    private final boolean copyPackets;
+    private long bytesWritten = 0;
+
+    /**
+     * @param copyPackets hand each packet to the pipeline in a fresh array, as
+     *                    SerialInputOutputManager did, instead of a slice
+     */
+    public LoopbackPort(ReceivePipeline pipeline, int packetSize, boolean copyPackets) {
+        this.pipeline = pipeline;
+        this.packetSize = packetSize;
+        this.copyPackets = copyPackets;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length, int timeout) {
+        bytesWritten += length;
+        for (int end = offset + length; offset < end; offset += packetSize) {
+            int n = Math.min(packetSize, end - offset);
+            if (copyPackets) {
+                pipeline.onData(Arrays.copyOfRange(data, offset, offset + n), 0, n);
+            } else {
+                pipeline.onData(data, offset, n);
+            }
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+}
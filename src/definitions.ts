@@ -5,22 +5,377 @@ export interface UsbDevice {
   deviceName: string;
   manufacturerName?: string;
   serialNumber?: string;
+  /**
+   * Number of serial ports the device exposes (Android only)
+   */
+  portCount?: number;
+}
+
+/**
+ * Identifies an open port. Either pass the connectionId returned by connect()
+ * or the deviceId (and portNumber, default 0). When only one port is open the
+ * target may be omitted.
+ */
+export interface ConnectionTarget {
+  connectionId?: string;
+  deviceId?: number;
+  portNumber?: number;
+}
+
+/**
+ * Binary payload as a base64 string or an array of byte values
+ */
+export type BinaryData = string | number[];
+
+export interface BatchingOptions {
+  /**
+   * Flush once this many bytes are pending (default 4096)
+   */
+  maxBytes?: number;
+  /**
+   * Flush once the oldest pending byte has waited this long, in ms (default 16)
+   */
+  maxLatencyMs?: number;
+  /**
+   * Flush up to and including the last occurrence of this delimiter
+   */
+  delimiter?: string;
+}
+
+export interface FramingOptions {
+  /**
+   * Framing strategy applied to received bytes (default 'delimiter')
+   */
+  type?: 'delimiter' | 'fixedLength' | 'lengthPrefix' | 'slip' | 'cobs';
+  /**
+   * Delimiter for 'delimiter' framing, as a string or byte values (default '\n')
+   */
+  delimiter?: string | number[];
+  /**
+   * Keep the delimiter at the end of each frame (default false)
+   */
+  includeDelimiter?: boolean;
+  /**
+   * Frame size for 'fixedLength' framing
+   */
+  length?: number;
+  /**
+   * Bytes preceding the length field for 'lengthPrefix' framing (default 0)
+   */
+  lengthFieldOffset?: number;
+  /**
+   * Size of the length field in bytes: 1, 2 or 4 (default 1)
+   */
+  lengthFieldSize?: number;
+  /**
+   * Byte order of the length field (default true)
+   */
+  bigEndian?: boolean;
+  /**
+   * Added to the decoded length, e.g. to cover a trailing checksum (default 0)
+   */
+  lengthAdjustment?: number;
+  /**
+   * Largest accepted frame; buffered bytes are discarded beyond it (default 4096)
+   */
+  maxFrameSize?: number;
 }
 
+export interface FilterOptions {
+  /**
+   * Keep only frames matching one of these patterns, each a UTF-8 string or
+   * an array of byte values
+   */
+  match?: string | number[] | (string | number[])[];
+  /**
+   * Where a pattern has to match (default 'start')
+   */
+  matchAt?: 'start' | 'anywhere';
+  /**
+   * Keep every n-th frame (default 1)
+   */
+  decimate?: number;
+  /**
+   * Drop frames arriving less than this many ms after the last delivered one
+   */
+  throttleMs?: number;
+  /**
+   * Deliver only the latest frame once per interval in ms, dropping the
+   * frames it replaced
+   */
+  sampleIntervalMs?: number;
+}
+
+export type FlowControl = 'none' | 'rtsCts' | 'dtrDsr' | 'xonXoff';
+
+export type DataEncoding = 'utf8' | 'hex' | 'base64' | 'utf8+hex';
+
 export interface UsbSerialOptions {
   baudRate?: number;
   dataBits?: number;
   stopBits?: number;
   parity?: 'none' | 'odd' | 'even' | 'mark' | 'space';
+  /**
+   * Flow control done by the USB serial chip; connect fails if the driver
+   * does not support the mode (Android only, default 'none')
+   */
+  flowControl?: FlowControl;
+  /**
+   * Set DTR once the port is open; unset keeps the driver default
+   */
   dtr?: boolean;
+  /**
+   * Set RTS once the port is open; unset keeps the driver default
+   */
   rts?: boolean;
+  /**
+   * Poll the modem status lines at this interval in ms and emit
+   * 'controlLinesChanged' when they change, 0 to disable (Android only, default 0)
+   */
+  controlLinesInterval?: number;
+  /**
+   * Coalesce received chunks into fewer dataReceived events (Android only)
+   */
+  batching?: BatchingOptions;
+  /**
+   * Representation of received bytes in dataReceived events (default 'utf8+hex')
+   */
+  encoding?: DataEncoding;
+  /**
+   * Split received bytes into frames delivered as frameReceived events
+   * instead of dataReceived (Android only)
+   */
+  framing?: FramingOptions;
+  /**
+   * Drop frames (or chunks, without framing) natively before they become
+   * events (Android only)
+   */
+  filter?: FilterOptions;
+  /**
+   * Default timeout of a single write, in ms (default 1000)
+   */
+  writeTimeout?: number;
+  /**
+   * Number of writes that may wait for the writer thread before write()
+   * rejects with WRITE_QUEUE_FULL (default 64)
+   */
+  writeQueueSize?: number;
+  /**
+   * Tuning preset applied before the explicit values below. 'highThroughput'
+   * uses 16 KiB read and write buffers (Android only)
+   */
+  preset?: 'default' | 'highThroughput';
+  /**
+   * Size of each USB bulk read in bytes (Android only, default one packet)
+   */
+  readBufferSize?: number;
+  /**
+   * Timeout of each USB bulk read in ms, 0 blocks until data arrives (Android only)
+   */
+  readTimeout?: number;
+  /**
+   * Android thread priority of the reader thread, e.g. -19 for urgent audio (Android only)
+   */
+  threadPriority?: number;
+  /**
+   * Largest slice handed to a single USB bulk write, 0 for no limit (Android only)
+   */
+  writeBufferSize?: number;
+  /**
+   * Emit a 'stats' event at this interval in ms, 0 to disable (Android only, default 0)
+   */
+  statsInterval?: number;
+  /**
+   * Capacity in bytes of the buffer read() pulls from while push delivery is
+   * stopped (Android only, default 65536)
+   */
+  receiveBufferSize?: number;
+  /**
+   * What happens when the receive buffer is full: discard the oldest bytes,
+   * discard the incoming bytes, or stop reading from the device until
+   * read() makes room (Android only, default 'dropOldest')
+   */
+  overflowPolicy?: 'dropOldest' | 'dropNewest' | 'block';
+  /**
+   * Keep the session when the device is unplugged and re-open it with the
+   * same options when a device with the same vendor ID, product ID and
+   * serial number is attached again. The connectionId stays the same and
+   * writes made in between are sent after reconnecting (Android only)
+   */
+  autoReconnect?: boolean;
+  /**
+   * Time in ms to wait for the device to return before the connection is
+   * closed, 0 to wait indefinitely (Android only, default 0)
+   */
+  reconnectTimeout?: number;
+  /**
+   * Bytes of received data and frames to hold while the app is paused,
+   * dropping the oldest when full. They are emitted as backlog events when
+   * it resumes: merged data as 'dataReceived' and frames in batches as
+   * 'framesReceived'. 0 keeps emitting events while paused (Android only,
+   * default 0)
+   */
+  spoolSize?: number;
+}
+
+export interface PermissionResult {
+  deviceId: number;
+  granted: boolean;
 }
 
 export interface DataReceivedEvent {
-  data: string;
-  hexData: string;
+  /**
+   * UTF-8 decoded payload, present for 'utf8' and 'utf8+hex'
+   */
+  data?: string;
+  /**
+   * Upper-case hex payload, present for 'hex' and 'utf8+hex'
+   */
+  hexData?: string;
+  /**
+   * Base64 payload, present for 'base64'
+   */
+  base64Data?: string;
+  encoding: DataEncoding;
+  /**
+   * Number of payload bytes
+   */
+  length?: number;
   timestamp: number;
   deviceId: number;
+  portNumber?: number;
+  connectionId?: string;
+  /**
+   * Set on events played back by replayRecording
+   */
+  replay?: boolean;
+  /**
+   * Set on data spooled while the app was paused, timestamp is when its
+   * first byte was received
+   */
+  backlog?: boolean;
+}
+
+export interface FramesReceivedEvent {
+  /**
+   * Frames spooled while the app was paused, oldest first, each with the
+   * time it was received
+   */
+  frames: DataReceivedEvent[];
+  deviceId: number;
+  portNumber: number;
+  connectionId: string;
+  backlog: true;
+}
+
+export interface ReadResult {
+  /**
+   * Payload fields follow the connection's encoding, see DataReceivedEvent
+   */
+  data?: string;
+  hexData?: string;
+  base64Data?: string;
+  encoding?: DataEncoding;
+  length?: number;
+}
+
+export interface TransactOptions {
+  /**
+   * Request bytes, as a base64 string or an array of byte values
+   */
+  data: BinaryData;
+  /**
+   * The response ends with these bytes (a UTF-8 string or byte values, e.g.
+   * '\r\nOK\r\n')
+   */
+  terminator?: string | number[];
+  /**
+   * The response is exactly this many bytes; takes precedence over terminator
+   */
+  expectedLength?: number;
+  /**
+   * Time in ms to wait for the complete response after the request was
+   * written (default 1000)
+   */
+  timeout?: number;
+  /**
+   * Largest response accepted when matching a terminator (default 4096)
+   */
+  maxResponseSize?: number;
+}
+
+export type TransactionStatus = 'ok' | 'timeout' | 'overflow' | 'skipped';
+
+export interface TransactionResult extends ReadResult {
+  status: TransactionStatus;
+  /**
+   * Time in ms from writing the request to the end of the response
+   */
+  elapsed: number;
+}
+
+export interface RecordingOptions {
+  /**
+   * Absolute directory for the recording files (default: usb-recordings in
+   * the app's files directory)
+   */
+  directory?: string;
+  /**
+   * Size in bytes after which a new file is started (default 16 MiB)
+   */
+  maxFileSize?: number;
+  /**
+   * Number of files kept, the oldest are deleted on rotation (default 4)
+   */
+  maxFiles?: number;
+  /**
+   * Record written data as well as received data (default true)
+   */
+  includeTx?: boolean;
+}
+
+export interface RecordingResult {
+  /**
+   * Recording files still on disk, oldest first
+   */
+  files: string[];
+  records: number;
+  bytes: number;
+  /**
+   * Set if recording stopped early because of an I/O error
+   */
+  error?: string;
+}
+
+export interface ReplayOptions {
+  /**
+   * Recording files to play, in order, as returned by stopRecording
+   */
+  files: string[];
+  /**
+   * connectionId carried by the replayed events (default 'replay')
+   */
+  connectionId?: string;
+  /**
+   * Receive side options to replay with: encoding, framing and batching
+   */
+  serialOptions?: UsbSerialOptions;
+  /**
+   * Playback speed relative to the recording, 0 to play without delays
+   * (default 1)
+   */
+  speed?: number;
+}
+
+export interface ReplayResult {
+  connectionId: string;
+  records: number;
+  bytes: number;
+  duration: number;
+  /**
+   * False if the replay was stopped before the end of the recording
+   */
+  completed: boolean;
 }
 
 export interface DeviceAttachedEvent {
@@ -36,8 +391,286 @@ export interface DeviceDetachedEvent {
   deviceId: number;
 }
 
+/**
+ * Lifecycle of a connection: 'suspended' while an auto-reconnect device is
+ * gone, 'draining' while a disconnect waits for queued writes
+ */
+export type ConnectionState = 'connecting' | 'open' | 'suspended' | 'draining' | 'closing' | 'closed';
+
+export interface ConnectionStateChangedEvent {
+  connected: boolean;
+  /**
+   * (Android only)
+   */
+  state?: ConnectionState;
+  deviceId?: number;
+  portNumber?: number;
+  connectionId?: string;
+  /**
+   * The device was detached and the session waits for it to return
+   */
+  reconnecting?: boolean;
+  /**
+   * The session was resumed on a re-attached device
+   */
+  reconnected?: boolean;
+}
+
+export interface ReconnectedEvent {
+  connectionId: string;
+  /**
+   * Device ID of the re-attached device, which differs from the original
+   */
+  deviceId: number;
+  portNumber: number;
+  /**
+   * Time in ms from the device being detached to the port being open again
+   */
+  downtime: number;
+  /**
+   * Time in ms spent re-opening the port once the device was back
+   */
+  openTime: number;
+  /**
+   * Writes that were queued while the device was gone and are sent now
+   */
+  queuedWrites: number;
+}
+
+export interface StreamFileOptions {
+  /**
+   * File to send; relative paths are resolved against the app's files directory
+   */
+  path: string;
+  /**
+   * Bytes per chunk (default 4096)
+   */
+  chunkSize?: number;
+  /**
+   * Pause between chunks in ms (default 0)
+   */
+  interChunkDelay?: number;
+  /**
+   * Wait after each chunk for a response ending in these bytes before
+   * sending the next one
+   */
+  ack?: string | number[];
+  /**
+   * Time to wait for each acknowledgement in ms (default 1000)
+   */
+  ackTimeout?: number;
+  /**
+   * Minimum time between 'streamProgress' events in ms (default 250)
+   */
+  progressInterval?: number;
+}
+
+export interface StreamProgressEvent {
+  connectionId: string;
+  path: string;
+  bytesSent: number;
+  totalBytes: number;
+}
+
+export interface StreamFileResult extends StreamProgressEvent {
+  chunks: number;
+  /**
+   * Milliseconds from the first chunk to the end of the stream
+   */
+  duration: number;
+  /**
+   * False if the stream was cancelled
+   */
+  completed: boolean;
+}
+
+export interface ModbusPollGroup {
+  /**
+   * Reported back in events (default: the group's index)
+   */
+  id?: string;
+  /**
+   * Slave address, 1-247 (default 1)
+   */
+  slave?: number;
+  /**
+   * 1 coils, 2 discrete inputs, 3 holding registers, 4 input registers (default 3)
+   */
+  function?: 1 | 2 | 3 | 4;
+  /**
+   * First register or coil (default 0)
+   */
+  address?: number;
+  /**
+   * Number of registers (max 125) or coils (max 2000) (default 1)
+   */
+  count?: number;
+  /**
+   * Poll interval in ms (default 1000)
+   */
+  interval?: number;
+}
+
+export interface RegistersChangedEvent {
+  connectionId: string;
+  group: string;
+  slave: number;
+  function: number;
+  address: number;
+  /**
+   * All values of the group: unsigned 16-bit registers, or 0/1 per coil or input
+   */
+  values: number[];
+  /**
+   * Addresses whose value changed since the previous poll; all on the first poll
+   */
+  changed: number[];
+}
+
+export interface ModbusErrorEvent {
+  connectionId: string;
+  group: string;
+  slave: number;
+  function: number;
+  address: number;
+  message: string;
+}
+
+/**
+ * State of the lines the driver supports; the others are left out
+ */
+export interface ControlLines {
+  dtr?: boolean;
+  rts?: boolean;
+  cts?: boolean;
+  dsr?: boolean;
+  cd?: boolean;
+  ri?: boolean;
+}
+
+export interface ControlLinesChangedEvent extends ControlLines {
+  connectionId: string;
+  /**
+   * Names of the lines that changed since the previous poll
+   */
+  changed: (keyof ControlLines)[];
+}
+
+export interface PulseStep {
+  dtr?: boolean;
+  rts?: boolean;
+  break?: boolean;
+  /**
+   * Time to hold the lines before the next step, in ms (max 10000)
+   */
+  delayMs?: number;
+}
+
+export interface WriteBackpressureEvent {
+  connectionId: string;
+  /**
+   * True once the queue is three quarters full, false once it has drained below a quarter
+   */
+  congested: boolean;
+  queued: number;
+  capacity: number;
+}
+
+export interface LatencyStats {
+  count: number;
+  /**
+   * Milliseconds
+   */
+  min: number;
+  avg: number;
+  /**
+   * Upper bound of the power-of-two bucket holding the 99th percentile
+   */
+  p99: number;
+  max: number;
+}
+
+export interface ConnectionStats {
+  connectionId: string;
+  state: ConnectionState;
+  /**
+   * Epoch ms at which the connection was opened
+   */
+  openedAt: number;
+  bytesIn: number;
+  bytesOut: number;
+  reads: number;
+  /**
+   * Reads per second since the previous 'stats' event, or since the
+   * connection opened for getStats()
+   */
+  readsPerSecond: number;
+  writes: number;
+  eventsEmitted: number;
+  /**
+   * Bytes discarded by framing or buffering
+   */
+  droppedBytes: number;
+  /**
+   * Frames or chunks dropped by the delivery filter
+   */
+  filteredEvents: number;
+  writeQueueDepth: number;
+  /**
+   * Time from write() being queued to the transfer completing
+   */
+  writeLatency: LatencyStats;
+  /**
+   * Time from bytes being read to their event being dispatched
+   */
+  dispatchLatency: LatencyStats;
+}
+
+export type TraceLevel = 'off' | 'error' | 'info' | 'debug';
+
+export type TraceEvent =
+  | 'attached'
+  | 'detached'
+  | 'permission'
+  | 'state'
+  | 'backpressure'
+  | 'error'
+  | 'read'
+  | 'write'
+  | 'transaction';
+
+export interface TraceRecord {
+  /**
+   * Epoch ms
+   */
+  time: number;
+  event: TraceEvent;
+  deviceId: number;
+  /**
+   * Depends on the event: vendorId << 16 | productId for attached and
+   * detached, 1 or 0 for permission, the index of the new ConnectionState for
+   * state, queued writes for backpressure (negated once cleared), bytes for
+   * read and write, microseconds for transaction
+   */
+  value: number;
+}
+
+export interface TraceDump {
+  level: TraceLevel;
+  capacity: number;
+  /**
+   * Records written since start, including those already overwritten
+   */
+  written: number;
+  /**
+   * Retained records, oldest first
+   */
+  records: TraceRecord[];
+}
+
 export interface ErrorEvent {
   message: string;
+  connectionId?: string;
 }
 
 export interface UsbSerialPlugin {
@@ -46,43 +679,210 @@ export interface UsbSerialPlugin {
    */
   requestPermission(options?: { deviceId?: number }): Promise<{ granted: boolean }>;
 
+  /**
+   * Request permission for several devices, one system dialog after the
+   * other, and resolve once with every result (Android only). Without
+   * deviceIds every attached device with a serial driver is requested;
+   * devices that already have permission do not show a dialog.
+   */
+  requestPermissions(options?: { deviceIds?: number[] }): Promise<{ results: PermissionResult[] }>;
+
   /**
    * List all connected USB devices
    */
   listDevices(): Promise<{ devices: UsbDevice[] }>;
 
   /**
-   * Connect to a USB device
+   * Connect to a port of a USB device. Several ports may be open at once,
+   * each addressed by the returned connectionId.
    */
   connect(options: {
     deviceId: number;
+    portNumber?: number;
     serialOptions?: UsbSerialOptions;
-  }): Promise<{ connected: boolean }>;
+  }): Promise<{ connected: boolean; connectionId: string }>;
 
   /**
-   * Disconnect from the current device
+   * Disconnect a port, or every open port when no target is given. With
+   * drain, new writes are rejected and the call resolves once the queued ones
+   * have completed or drainTimeout ms (default 5000) have passed (Android only)
    */
-  disconnect(): Promise<{ disconnected: boolean }>;
+  disconnect(options?: { drain?: boolean; drainTimeout?: number } & ConnectionTarget): Promise<{ disconnected: boolean }>;
 
   /**
-   * Write data to the serial port
+   * Write data to the serial port. Writes are queued per connection and the
+   * promise resolves once the bytes have been transferred.
    */
-  write(options: { data: string }): Promise<{ bytesWritten: number }>;
+  write(options: { data: string; timeout?: number } & ConnectionTarget): Promise<{ bytesWritten: number }>;
 
   /**
-   * Read data from the serial port
+   * Write raw bytes, given as a base64 string or an array of byte values,
+   * without any text encoding (Android only)
    */
-  read(): Promise<{ data: string }>;
+  writeBytes(options: { data: BinaryData; timeout?: number } & ConnectionTarget): Promise<{ bytesWritten: number }>;
 
   /**
-   * Start listening for data
+   * Write several buffers back to back in a single call, e.g. firmware
+   * blocks (Android only)
    */
-  startListening(): Promise<void>;
+  writeChunks(options: { chunks: BinaryData[]; timeout?: number } & ConnectionTarget): Promise<{ bytesWritten: number }>;
 
   /**
-   * Stop listening for data
+   * Throughput and latency counters of a connection (Android only)
    */
-  stopListening(): Promise<void>;
+  getStats(options?: ConnectionTarget): Promise<ConnectionStats>;
+
+  /**
+   * Read buffered data from the serial port. On Android this pulls from the
+   * receive buffer, which is filled while push delivery is stopped; if it is
+   * empty the call waits up to timeout ms (default 0) for data.
+   */
+  read(options?: { maxBytes?: number; timeout?: number } & ConnectionTarget): Promise<ReadResult>;
+
+  /**
+   * Write a request and wait for its response, matched natively against a
+   * terminator or an expected length (Android only). Rejects with code
+   * TIMEOUT or OVERFLOW when no complete response arrives.
+   */
+  transact(options: TransactOptions & ConnectionTarget): Promise<TransactionResult>;
+
+  /**
+   * Run several transactions back to back and resolve once with all
+   * responses, in order (Android only). Failed transactions are reported by
+   * their status; with stopOnError the remaining ones are skipped.
+   */
+  transactBatch(
+    options: { transactions: TransactOptions[]; stopOnError?: boolean } & ConnectionTarget
+  ): Promise<{ results: TransactionResult[] }>;
+
+  /**
+   * Record received, and optionally written, data of a connection to
+   * timestamped binary files on the device (Android only)
+   */
+  startRecording(options?: RecordingOptions & ConnectionTarget): Promise<{ connectionId: string; path: string }>;
+
+  /**
+   * Stop recording a connection (Android only)
+   */
+  stopRecording(options?: ConnectionTarget): Promise<RecordingResult>;
+
+  /**
+   * Play the received data of a recording back as dataReceived and
+   * frameReceived events, with replay set and deviceId -1, without a device
+   * attached. Resolves when playback ends (Android only)
+   */
+  replayRecording(options: ReplayOptions): Promise<ReplayResult>;
+
+  /**
+   * Stop a running replay; its replayRecording call resolves with
+   * completed false (Android only)
+   */
+  stopReplay(options?: { connectionId?: string }): Promise<void>;
+
+  /**
+   * Replace the delivery filter of an open connection, or remove it when no
+   * filter is given (Android only)
+   */
+  setFilter(options: { filter?: FilterOptions } & ConnectionTarget): Promise<void>;
+
+  /**
+   * Set DTR and/or RTS, in order with queued writes (Android only)
+   */
+  setControlLines(options: { dtr?: boolean; rts?: boolean } & ConnectionTarget): Promise<void>;
+
+  /**
+   * Read the control and modem status lines (Android only)
+   */
+  getControlLines(options?: ConnectionTarget): Promise<ControlLines>;
+
+  /**
+   * Hold break for duration ms, default 250 (Android only)
+   */
+  sendBreak(options?: { duration?: number } & ConnectionTarget): Promise<void>;
+
+  /**
+   * Run timed DTR/RTS/break toggles natively, e.g. to enter a bootloader,
+   * without a bridge round trip per step. Resolves with the time the sequence
+   * took in ms (Android only)
+   */
+  pulseSequence(options: { steps: PulseStep[] } & ConnectionTarget): Promise<{ elapsed: number }>;
+
+  /**
+   * Discard the data held in the device's transmit and/or receive buffers,
+   * both by default. Runs after the writes already queued (Android only)
+   */
+  purgeHwBuffers(options?: { write?: boolean; read?: boolean } & ConnectionTarget): Promise<void>;
+
+  /**
+   * Resolve once every write queued before this call has been transferred
+   * to the device (Android only)
+   */
+  drain(options?: ConnectionTarget): Promise<void>;
+
+  /**
+   * Send a file from app storage to the port natively, in order with other
+   * writes. Rejects if a chunk is not acknowledged in time (Android only)
+   */
+  streamFile(options: StreamFileOptions & ConnectionTarget): Promise<StreamFileResult>;
+
+  /**
+   * Stop the running streamFile() after its current chunk (Android only)
+   */
+  cancelStream(options?: ConnectionTarget): Promise<{ cancelled: boolean }>;
+
+  /**
+   * Poll Modbus RTU slaves natively, replacing any polling already running on
+   * the connection. Values are reported through 'registersChanged' only when
+   * they change, and a failing group through one 'modbusError' until it
+   * recovers. timeout is the response timeout per poll in ms (Android only)
+   */
+  startModbusPolling(
+    options: { groups: ModbusPollGroup[]; timeout?: number } & ConnectionTarget
+  ): Promise<void>;
+
+  /**
+   * Stop Modbus polling and get its counters (Android only)
+   */
+  stopModbusPolling(options?: ConnectionTarget): Promise<{ polls: number; failures: number; changes: number }>;
+
+  /**
+   * Start a foreground service that keeps the app, and with it the open
+   * connections, running while it is in the background. Call it while the
+   * app is in the foreground and after USB permission was granted; it
+   * resolves once the service is in the foreground and rejects otherwise.
+   * wakeLock keeps the CPU awake while connections are open (Android only,
+   * default true)
+   */
+  startForegroundService(options?: { title?: string; text?: string; wakeLock?: boolean }): Promise<void>;
+
+  /**
+   * Stop the foreground service; connections stay open (Android only)
+   */
+  stopForegroundService(): Promise<void>;
+
+  /**
+   * Get the native trace ring buffer, optionally clearing it afterwards.
+   * Its size and initial level come from the traceCapacity and traceLevel
+   * plugin config (Android only)
+   */
+  dumpTrace(options?: { clear?: boolean }): Promise<TraceDump>;
+
+  /**
+   * Change which trace events are recorded from now on (Android only)
+   */
+  setTraceLevel(options: { level: TraceLevel }): Promise<void>;
+
+  /**
+   * Start listening for data, i.e. deliver received data as events. This is
+   * the initial state of a connection on Android.
+   */
+  startListening(options?: ConnectionTarget): Promise<void>;
+
+  /**
+   * Stop listening for data. On Android received data is then kept in the
+   * receive buffer for read() instead of being pushed as events.
+   */
+  stopListening(options?: ConnectionTarget): Promise<void>;
 
   /**
    * Add listener for data received events
@@ -92,12 +892,29 @@ export interface UsbSerialPlugin {
     listenerFunc: (event: DataReceivedEvent) => void
   ): Promise<{ remove: () => void }>;
 
+  /**
+   * Add listener for complete frames when framing is configured
+   */
+  addListener(
+    eventName: 'frameReceived',
+    listenerFunc: (event: DataReceivedEvent) => void
+  ): Promise<{ remove: () => void }>;
+
+  /**
+   * Add listener for batches of frames spooled while the app was paused
+   * (Android only)
+   */
+  addListener(
+    eventName: 'framesReceived',
+    listenerFunc: (event: FramesReceivedEvent) => void
+  ): Promise<{ remove: () => void }>;
+
   /**
    * Add listener for connection state changes
    */
   addListener(
     eventName: 'connectionStateChanged',
-    listenerFunc: (event: { connected: boolean; deviceId?: number }) => void
+    listenerFunc: (event: ConnectionStateChangedEvent) => void
   ): Promise<{ remove: () => void }>;
 
   /**
@@ -116,6 +933,62 @@ export interface UsbSerialPlugin {
     listenerFunc: (event: DeviceDetachedEvent) => void
   ): Promise<{ remove: () => void }>;
 
+  /**
+   * Add listener for write queue congestion changes
+   */
+  addListener(
+    eventName: 'writeBackpressure',
+    listenerFunc: (event: WriteBackpressureEvent) => void
+  ): Promise<{ remove: () => void }>;
+
+  /**
+   * Add listener for periodic connection stats (see statsInterval)
+   */
+  addListener(
+    eventName: 'stats',
+    listenerFunc: (event: ConnectionStats) => void
+  ): Promise<{ remove: () => void }>;
+
+  /**
+   * Add listener for modem status changes (see controlLinesInterval)
+   */
+  addListener(
+    eventName: 'controlLinesChanged',
+    listenerFunc: (event: ControlLinesChangedEvent) => void
+  ): Promise<{ remove: () => void }>;
+
+  /**
+   * Add listener for streamFile() progress
+   */
+  addListener(
+    eventName: 'streamProgress',
+    listenerFunc: (event: StreamProgressEvent) => void
+  ): Promise<{ remove: () => void }>;
+
+  /**
+   * Add listener for changed Modbus values (see startModbusPolling)
+   */
+  addListener(
+    eventName: 'registersChanged',
+    listenerFunc: (event: RegistersChangedEvent) => void
+  ): Promise<{ remove: () => void }>;
+
+  /**
+   * Add listener for Modbus poll groups that started failing
+   */
+  addListener(
+    eventName: 'modbusError',
+    listenerFunc: (event: ModbusErrorEvent) => void
+  ): Promise<{ remove: () => void }>;
+
+  /**
+   * Add listener for auto-reconnect sessions resuming
+   */
+  addListener(
+    eventName: 'reconnected',
+    listenerFunc: (event: ReconnectedEvent) => void
+  ): Promise<{ remove: () => void }>;
+
   /**
    * Add listener for error events
    */
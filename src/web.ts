@@ -1,5 +1,5 @@
 import { WebPlugin } from '@capacitor/core';
-import type { UsbSerialPlugin, UsbDevice, DataReceivedEvent, DeviceAttachedEvent, DeviceDetachedEvent, ErrorEvent } from './definitions';
+import type { UsbSerialPlugin, UsbDevice, DataReceivedEvent, DeviceAttachedEvent, DeviceDetachedEvent, ErrorEvent, ConnectionStats, ReadResult, TransactionResult, PermissionResult, RecordingResult, ReplayResult, ControlLines, StreamFileResult, TraceDump } from './definitions';
 
 export class UsbSerialWeb extends WebPlugin implements UsbSerialPlugin {
   private port: any = null;
@@ -57,6 +57,10 @@ export class UsbSerialWeb extends WebPlugin implements UsbSerialPlugin {
     }
   }
 
+  async requestPermissions(): Promise<{ results: PermissionResult[] }> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
   async listDevices(): Promise<{ devices: UsbDevice[] }> {
     if (!('serial' in navigator)) {
       throw new Error('Web Serial API not supported');
@@ -103,7 +107,7 @@ export class UsbSerialWeb extends WebPlugin implements UsbSerialPlugin {
   async connect(options: { 
     deviceId: number; 
     serialOptions?: any 
-  }): Promise<{ connected: boolean }> {
+  }): Promise<{ connected: boolean; connectionId: string }> {
     try {
       // Get the specific port for the deviceId
       if (!this.port) {
@@ -153,12 +157,16 @@ export class UsbSerialWeb extends WebPlugin implements UsbSerialPlugin {
       
       console.log('Connected to serial port successfully');
       
+      // Web Serial ports have a single channel, so the port number is always 0
+      const connectionId = `${options.deviceId}:0`;
       this.notifyListeners('connectionStateChanged', { 
         connected: true, 
-        deviceId: options.deviceId 
+        deviceId: options.deviceId,
+        portNumber: 0,
+        connectionId
       });
       
-      return { connected: true };
+      return { connected: true, connectionId };
     } catch (error) {
       this.connected = false;
       const errorMsg = 'Connection failed: ' + (error as Error).message;
@@ -220,7 +228,103 @@ export class UsbSerialWeb extends WebPlugin implements UsbSerialPlugin {
     }
   }
 
-  async read(): Promise<{ data: string }> {
+  async writeBytes(): Promise<{ bytesWritten: number }> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async writeChunks(): Promise<{ bytesWritten: number }> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async getStats(): Promise<ConnectionStats> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async transact(): Promise<TransactionResult> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async transactBatch(): Promise<{ results: TransactionResult[] }> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async startRecording(): Promise<{ connectionId: string; path: string }> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async stopRecording(): Promise<RecordingResult> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async replayRecording(): Promise<ReplayResult> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async stopReplay(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async setFilter(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async setControlLines(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async getControlLines(): Promise<ControlLines> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async sendBreak(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async pulseSequence(): Promise<{ elapsed: number }> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async purgeHwBuffers(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async drain(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async streamFile(): Promise<StreamFileResult> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async cancelStream(): Promise<{ cancelled: boolean }> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async startModbusPolling(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async stopModbusPolling(): Promise<{ polls: number; failures: number; changes: number }> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async startForegroundService(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async stopForegroundService(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async dumpTrace(): Promise<TraceDump> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async setTraceLevel(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async read(): Promise<ReadResult> {
     if (!this.reader || !this.connected) {
       const errorMsg = 'Cannot read: Not connected to any device';
       this.notifyError(errorMsg);
@@ -311,6 +415,7 @@ export class UsbSerialWeb extends WebPlugin implements UsbSerialPlugin {
     const event: DataReceivedEvent = {
       data: line,
       hexData: hexData,
+      encoding: 'utf8+hex',
       timestamp: Date.now(),
       deviceId: 0
     };